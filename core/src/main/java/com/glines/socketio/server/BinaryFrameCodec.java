@@ -0,0 +1,194 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary encoding of frames, used on WebSocket connections that negotiated binary
+ * framing. Each frame is:
+ * <pre>
+ *   1 byte   frame type in the low 4 bits, {@link #BINARY_PAYLOAD} flag in bit 4
+ *   varint   message type
+ *   varint   payload length in bytes
+ *   payload  UTF-8 text, or raw bytes if the BINARY_PAYLOAD flag is set
+ * </pre>
+ * Varints are unsigned LEB128, 7 bits per byte, least significant group first.
+ * Like the text encoding, several frames may be concatenated in one message.
+ */
+public final class BinaryFrameCodec {
+	public static final int BINARY_PAYLOAD = 0x10;
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+	/**
+	 * Largest possible header: the type byte and two 5 byte varints.
+	 */
+	public static final int MAX_HEADER_LENGTH = 11;
+
+	public interface FrameVisitor {
+		/**
+		 * The payload is only valid for the duration of the call.
+		 * @param binary True if the payload is raw bytes rather than UTF-8 text.
+		 * @return false to stop parsing.
+		 */
+		boolean onFrame(SocketIOFrame.FrameType frameType, int messageType, boolean binary,
+				byte[] buf, int offset, int length);
+	}
+
+	private BinaryFrameCodec() {
+	}
+
+	public static byte[] encode(SocketIOFrame.FrameType frameType, int messageType, String data) {
+		int length = OutboundMemoryAccountant.utf8Length(data);
+		byte[] buf = new byte[headerLength(messageType, length) + length];
+		int pos = writeHeader(buf, frameType, messageType, false, length);
+		writeUtf8(data, buf, pos);
+		return buf;
+	}
+
+	/**
+	 * Encode the remaining bytes of data, without changing its position.
+	 */
+	public static byte[] encode(SocketIOFrame.FrameType frameType, int messageType, ByteBuffer data) {
+		int length = data.remaining();
+		byte[] buf = new byte[headerLength(messageType, length) + length];
+		int pos = writeHeader(buf, frameType, messageType, true, length);
+		data.duplicate().get(buf, pos, length);
+		return buf;
+	}
+
+	/**
+	 * @return The index just past the last complete frame.
+	 * @throws IllegalArgumentException if the data is malformed.
+	 */
+	public static int decode(byte[] buf, int offset, int length, FrameVisitor visitor) {
+		int pos = offset;
+		int end = offset + length;
+		while (pos < end) {
+			int flags = buf[pos] & 0xFF;
+			if ((flags & ~(0x0F | BINARY_PAYLOAD)) != 0) {
+				throw new IllegalArgumentException("Bad frame header at " + (pos - offset));
+			}
+			int[] cursor = { pos + 1 };
+			long messageType = readVarint(buf, cursor, end);
+			long len = messageType < 0 ? -1 : readVarint(buf, cursor, end);
+			int p = cursor[0];
+			if (len < 0 || len > end - p) {
+				// Incomplete frame.
+				return pos;
+			}
+			if (!visitor.onFrame(SocketIOFrame.FrameType.fromInt(flags & 0x0F), (int)messageType,
+					(flags & BINARY_PAYLOAD) != 0, buf, p, (int)len)) {
+				return p + (int)len;
+			}
+			pos = p + (int)len;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param cursor Holds the read position, which is advanced past the varint.
+	 * @return The value, or -1 if the varint is incomplete.
+	 */
+	private static long readVarint(byte[] buf, int[] cursor, int end) {
+		int p = cursor[0];
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (p >= end) {
+				return -1;
+			}
+			int b = buf[p++];
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift == 28) {
+				throw new IllegalArgumentException("Varint too long");
+			}
+		}
+		if (value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Varint out of range: " + value);
+		}
+		cursor[0] = p;
+		return value;
+	}
+
+	private static int headerLength(int messageType, int length) {
+		return 1 + varintLength(messageType) + varintLength(length);
+	}
+
+	private static int varintLength(int value) {
+		int n = 1;
+		while ((value >>>= 7) != 0) {
+			n++;
+		}
+		return n;
+	}
+
+	private static int writeHeader(byte[] buf, SocketIOFrame.FrameType frameType, int messageType,
+			boolean binary, int length) {
+		buf[0] = (byte)((frameType.value() & 0x0F) | (binary ? BINARY_PAYLOAD : 0));
+		int pos = writeVarint(buf, 1, messageType);
+		return writeVarint(buf, pos, length);
+	}
+
+	private static int writeVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte)value;
+		return pos;
+	}
+
+	/**
+	 * Encodes exactly {@link OutboundMemoryAccountant#utf8Length(CharSequence)} bytes, with
+	 * unpaired surrogates replaced by U+FFFD.
+	 */
+	private static void writeUtf8(String str, byte[] buf, int pos) {
+		int len = str.length();
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte)c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte)(0xC0 | (c >> 6));
+				buf[pos++] = (byte)(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len &&
+					Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				buf[pos++] = (byte)(0xF0 | (cp >> 18));
+				buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte)(0x80 | (cp & 0x3F));
+			} else {
+				if (c >= '\uD800' && c <= '\uDFFF') {
+					c = '\uFFFD';
+				}
+				buf[pos++] = (byte)(0xE0 | (c >> 12));
+				buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+	}
+}
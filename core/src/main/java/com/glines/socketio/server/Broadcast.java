@@ -0,0 +1,146 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * The progress of a broadcast started with
+ * {@link RoomManager#broadcastAsync(String, SocketIOMessage, SocketIOOutbound)}.
+ * <p>
+ * The broadcast is done once every recipient has reported through its
+ * {@link SocketIOOutbound.SendCallback} whether the message was sent. The counts may be read
+ * at any time; they are final once the broadcast is done.
+ */
+public final class Broadcast {
+	private final SessionRegistry registry;
+	private final SocketIOMessage message;
+	private final int excludedSlot;
+	private final AtomicInteger recipients = new AtomicInteger();
+	private final AtomicInteger sent = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	// Outstanding callbacks and chunks, plus one until all chunks are submitted.
+	private final AtomicInteger pending = new AtomicInteger(1);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final SocketIOOutbound.SendCallback callback = new SocketIOOutbound.SendCallback() {
+		@Override
+		public void onSent() {
+			sent.incrementAndGet();
+			release();
+		}
+
+		@Override
+		public void onFailed(Throwable cause) {
+			failed.incrementAndGet();
+			Log.debug("Broadcast not delivered: " + cause);
+			release();
+		}
+	};
+
+	Broadcast(SessionRegistry registry, SocketIOMessage message, int excludedSlot) {
+		this.registry = registry;
+		this.message = message;
+		this.excludedSlot = excludedSlot;
+	}
+
+	/**
+	 * Hand the message to the members from fromSlot, inclusive, to toSlot, exclusive.
+	 */
+	void deliver(SlotSet members, int fromSlot, int toSlot) {
+		members.forEach(new SlotSet.Visitor() {
+			@Override
+			public void visit(int slot) {
+				if (slot == excludedSlot) {
+					return;
+				}
+				SocketIOSession session = registry.get(slot);
+				SocketIOSession.SessionTransportHandler handler = session == null ? null : session.getTransportHandler();
+				if (handler != null) {
+					recipients.incrementAndGet();
+					pending.incrementAndGet();
+					handler.sendMessage(message, callback);
+				}
+			}
+		}, fromSlot, toSlot);
+	}
+
+	/**
+	 * Account for a chunk about to be submitted, which must {@link #release()} when it has run.
+	 */
+	void fork() {
+		pending.incrementAndGet();
+	}
+
+	void release() {
+		if (pending.decrementAndGet() == 0) {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * @return true once every recipient has reported.
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait for the broadcast to be done.
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Wait for the broadcast to be done, at most the given time.
+	 * @return true if it is done.
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	/**
+	 * @return The number of members the message was handed to.
+	 */
+	public int getRecipientCount() {
+		return recipients.get();
+	}
+
+	/**
+	 * @return The number of recipients that reported the message as sent.
+	 */
+	public int getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of recipients that reported the message as not sent.
+	 */
+	public int getFailedCount() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans broadcasts out over a fixed set of worker threads.
+ * <p>
+ * The members of a room are split into chunks of consecutive slots, and each chunk holding
+ * at least one member is delivered by a worker. Chunk n of a room always goes to the same
+ * worker, counted on from a worker picked by the room's name, so that small rooms spread
+ * over all the workers. Each worker runs its chunks in order, so broadcasts to a room
+ * started by one thread reach every recipient in the order they were started.
+ * <p>
+ * Each worker queues at most queueSize chunks. When a worker's queue is full, the thread
+ * starting a broadcast waits for room, which slows producers down to the rate the workers
+ * deliver at.
+ */
+public class BroadcastExecutor {
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/**
+	 * Waits for room in the worker's queue instead of rejecting the chunk.
+	 */
+	private static final RejectedExecutionHandler WAIT_FOR_ROOM = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Broadcast executor shut down");
+			}
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+	};
+
+	private final ExecutorService[] workers;
+	private final int chunkSize;
+
+	/**
+	 * @param parallelism Number of worker threads.
+	 * @param chunkSize Number of slots delivered by a worker at a time.
+	 */
+	public BroadcastExecutor(int parallelism, int chunkSize) {
+		this(parallelism, chunkSize, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param parallelism Number of worker threads.
+	 * @param chunkSize Number of slots delivered by a worker at a time.
+	 * @param queueSize Number of chunks each worker may have queued.
+	 */
+	public BroadcastExecutor(int parallelism, int chunkSize, int queueSize) {
+		if (parallelism < 1 || chunkSize < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("parallelism, chunkSize and queueSize must be at least 1");
+		}
+		this.chunkSize = chunkSize;
+		this.workers = new ExecutorService[parallelism];
+		for (int i = 0; i < parallelism; i++) {
+			final String name = "SocketIO-Broadcast-" + (i + 1);
+			workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, WAIT_FOR_ROOM);
+		}
+	}
+
+	public int getParallelism() {
+		return workers.length;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Deliver a broadcast to every member of a set.
+	 * @param affinity Picks the worker of the first chunk, the same for every broadcast to the set.
+	 */
+	void execute(final Broadcast broadcast, final SlotSet members, int affinity) {
+		int first = (affinity & Integer.MAX_VALUE) % workers.length;
+		int toSlot;
+		for (int slot = members.nextSlot(0); slot >= 0; slot = members.nextSlot(toSlot)) {
+			int chunk = slot / chunkSize;
+			final int fromSlot = chunk * chunkSize;
+			toSlot = (int)Math.min(Integer.MAX_VALUE, (long)fromSlot + chunkSize);
+			final int chunkEnd = toSlot;
+			broadcast.fork();
+			try {
+				workers[(int)(((long)first + chunk) % workers.length)].execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							broadcast.deliver(members, fromSlot, chunkEnd);
+						} finally {
+							broadcast.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shut down, deliver on the caller's thread instead.
+				try {
+					broadcast.deliver(members, fromSlot, chunkEnd);
+				} finally {
+					broadcast.release();
+				}
+			}
+		}
+		broadcast.release();
+	}
+
+	/**
+	 * Stop the worker threads once they have delivered the chunks already submitted. Later
+	 * broadcasts are delivered on the caller's thread.
+	 */
+	public void shutdown() {
+		for (ExecutorService worker: workers) {
+			worker.shutdown();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.io.IOException;
+
+/**
+ * Carries room broadcasts and topic publishes between the nodes of a cluster, so that they
+ * reach sessions connected to any node.
+ * <p>
+ * A bus only has to make a best effort: deliver each message to every other node, in the
+ * order each node sent them, and never back to the node that sent it. Messages that arrive
+ * more than once are dropped by the receiver. Implementations are expected to batch
+ * messages per peer rather than write each one separately.
+ *
+ * @see SocketIOSessionManager#setClusterBus(ClusterBus)
+ */
+public interface ClusterBus {
+	interface Listener {
+		/**
+		 * Called for each message received from another node. Must not block.
+		 */
+		void onMessage(ClusterMessage message);
+	}
+
+	/**
+	 * Connect to the cluster.
+	 * @param listener Receives the messages sent by other nodes.
+	 */
+	void start(Listener listener) throws IOException;
+
+	/**
+	 * Queue a message for every other node. Must not block.
+	 */
+	void send(ClusterMessage message);
+
+	/**
+	 * Leave the cluster and release the bus's threads and connections.
+	 */
+	void stop();
+}
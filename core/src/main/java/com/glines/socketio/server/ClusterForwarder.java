@@ -0,0 +1,110 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Connects a node's {@link RoomManager} and {@link TopicManager} to a {@link ClusterBus}:
+ * numbers and sends what is broadcast or published here, and delivers what other nodes
+ * send to the local sessions, once.
+ */
+class ClusterForwarder implements ClusterBus.Listener {
+	private final String nodeId;
+	private final ClusterBus bus;
+	private final RoomManager rooms;
+	private final TopicManager topics;
+	// Guarded by this forwarder's lock, together with the send.
+	private long seq = 0;
+	// Highest sequence number delivered from each other node.
+	private final ConcurrentMap<String, AtomicLong> delivered = new ConcurrentHashMap<String, AtomicLong>();
+
+	ClusterForwarder(String nodeId, ClusterBus bus, RoomManager rooms, TopicManager topics) {
+		this.nodeId = nodeId;
+		this.bus = bus;
+		this.rooms = rooms;
+		this.topics = topics;
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Numbers and queues the message under one lock, so that the bus gets them in sequence
+	 * order. {@link ClusterBus#send(ClusterMessage)} doesn't block, so the lock is short.
+	 */
+	void forward(ClusterMessage.Kind kind, String target, SocketIOMessage message) {
+		synchronized (this) {
+			bus.send(new ClusterMessage(nodeId, ++seq, kind, target,
+					message.getMessageType(), message.getData()));
+		}
+	}
+
+	@Override
+	public void onMessage(ClusterMessage message) {
+		if (nodeId.equals(message.getOrigin()) || !isNew(message)) {
+			return;
+		}
+		SocketIOMessage local = new SocketIOMessage(message.getMessageType(), message.getData());
+		switch (message.getKind()) {
+		case ROOM:
+			rooms.deliver(message.getTarget(), local);
+			break;
+		case TOPIC:
+			topics.deliver(message.getTarget(), local);
+			break;
+		default:
+			Log.debug("Ignoring cluster message of kind " + message.getKind());
+			break;
+		}
+	}
+
+	/**
+	 * An origin queues its messages in sequence order and the bus keeps that order, so
+	 * anything not above the highest sequence number seen from that origin is a duplicate.
+	 */
+	private boolean isNew(ClusterMessage message) {
+		AtomicLong last = delivered.get(message.getOrigin());
+		if (last == null) {
+			last = new AtomicLong();
+			AtomicLong existing = delivered.putIfAbsent(message.getOrigin(), last);
+			if (existing != null) {
+				last = existing;
+			}
+		}
+		for (;;) {
+			long prev = last.get();
+			if (message.getSeq() <= prev) {
+				return false;
+			}
+			if (last.compareAndSet(prev, message.getSeq())) {
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A room broadcast or topic publish passed between the nodes of a cluster through a
+ * {@link ClusterBus}.
+ * <p>
+ * Each node numbers the messages it originates, so that a receiver can drop anything it
+ * has already seen from the same origin. The binary form, used by buses that cross process
+ * boundaries, is:
+ * <pre>
+ *   length       int, bytes that follow
+ *   kind         byte
+ *   messageType  int
+ *   seq          long
+ *   origin       short length + UTF-8
+ *   target       int length + UTF-8
+ *   data         int length + UTF-8
+ * </pre>
+ */
+public final class ClusterMessage {
+	public enum Kind {
+		/**
+		 * Broadcast to the members of the room named by the target.
+		 */
+		ROOM,
+		/**
+		 * Publish to the subscribers of patterns matching the topic named by the target.
+		 */
+		TOPIC
+	}
+
+	private static final Kind[] KINDS = Kind.values();
+
+	private final String origin;
+	private final long seq;
+	private final Kind kind;
+	private final String target;
+	private final int messageType;
+	private final String data;
+
+	public ClusterMessage(String origin, long seq, Kind kind, String target, int messageType, String data) {
+		this.origin = origin;
+		this.seq = seq;
+		this.kind = kind;
+		this.target = target;
+		this.messageType = messageType;
+		this.data = data;
+	}
+
+	/**
+	 * @return The id of the node the message was first sent from.
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return The message's number among those sent from its origin, starting at 1.
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return The room or topic.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	public int getMessageType() {
+		return messageType;
+	}
+
+	public String getData() {
+		return data;
+	}
+
+	/**
+	 * @return The binary form, including its length prefix.
+	 */
+	public byte[] encode() {
+		byte[] originBytes = origin.getBytes(BinaryFrameCodec.UTF_8);
+		byte[] targetBytes = target.getBytes(BinaryFrameCodec.UTF_8);
+		byte[] dataBytes = data.getBytes(BinaryFrameCodec.UTF_8);
+		int length = 1 + 4 + 8 + 2 + originBytes.length + 4 + targetBytes.length + 4 + dataBytes.length;
+		ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+		buffer.putInt(length);
+		buffer.put((byte)kind.ordinal());
+		buffer.putInt(messageType);
+		buffer.putLong(seq);
+		buffer.putShort((short)originBytes.length).put(originBytes);
+		buffer.putInt(targetBytes.length).put(targetBytes);
+		buffer.putInt(dataBytes.length).put(dataBytes);
+		return buffer.array();
+	}
+
+	/**
+	 * Decode a message, if buffer holds a complete one, and advance past it.
+	 * @param buffer An array backed buffer.
+	 * @return The message, or null if more bytes are needed, in which case the position is
+	 * unchanged.
+	 * @throws IllegalArgumentException if the bytes are not a valid message.
+	 */
+	public static ClusterMessage decode(ByteBuffer buffer) {
+		if (buffer.remaining() < 4) {
+			return null;
+		}
+		int start = buffer.position();
+		int length = buffer.getInt(start);
+		if (length < 0) {
+			throw new IllegalArgumentException("Invalid cluster message length: " + length);
+		}
+		if (buffer.remaining() < 4 + length) {
+			return null;
+		}
+		ByteBuffer body = buffer.duplicate();
+		body.position(start + 4);
+		body.limit(start + 4 + length);
+		try {
+			int kind = body.get();
+			if (kind < 0 || kind >= KINDS.length) {
+				throw new IllegalArgumentException("Invalid cluster message kind: " + kind);
+			}
+			int messageType = body.getInt();
+			long seq = body.getLong();
+			String origin = getString(body, body.getShort() & 0xFFFF);
+			String target = getString(body, body.getInt());
+			String data = getString(body, body.getInt());
+			buffer.position(start + 4 + length);
+			return new ClusterMessage(origin, seq, KINDS[kind], target, messageType, data);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated cluster message");
+		}
+	}
+
+	private static String getString(ByteBuffer buffer, int length) {
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, BinaryFrameCodec.UTF_8);
+		buffer.position(buffer.position() + length);
+		return str;
+	}
+}
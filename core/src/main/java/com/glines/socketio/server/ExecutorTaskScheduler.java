@@ -0,0 +1,61 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SocketIOSession.SessionTaskScheduler} backed by a single threaded
+ * {@link ScheduledExecutorService}. Scheduling and canceling are O(log n) in the number
+ * of pending tasks.
+ */
+public class ExecutorTaskScheduler implements SocketIOSession.SessionTaskScheduler {
+	private final ScheduledExecutorService executor;
+
+	public ExecutorTaskScheduler() {
+		this(Executors.newScheduledThreadPool(1));
+	}
+
+	public ExecutorTaskScheduler(ScheduledExecutorService executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public SocketIOSession.SessionTask schedule(Runnable task, long delay) {
+		final Future<?> future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		return new SocketIOSession.SessionTask() {
+			@Override
+			public boolean cancel() {
+				return future.cancel(false);
+			}
+		};
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * {@link SocketIOSession.SessionTaskScheduler} based on a hashed timing wheel.
+ * <p>
+ * Scheduling and canceling a task are O(1) and never contend on a shared lock: new and
+ * canceled tasks are handed to the worker thread through lock free queues, and only the
+ * worker thread touches the wheel itself. Every tick the worker expires the tasks of one
+ * bucket, so a task runs no earlier than its delay and at most one tick duration late.
+ * This suits the heartbeat and timeout timers, which are rescheduled on nearly every
+ * message and almost always canceled before they fire.
+ * <p>
+ * Tasks are executed on the worker thread and must not block.
+ */
+public class HashedWheelTaskScheduler implements SocketIOSession.SessionTaskScheduler {
+	public static final long DEFAULT_TICK_DURATION = 100;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final int ST_PENDING = 0;
+	private static final int ST_CANCELED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime;
+	private final Queue<WheelTask> scheduled = new ConcurrentLinkedQueue<WheelTask>();
+	private final Queue<WheelTask> canceled = new ConcurrentLinkedQueue<WheelTask>();
+	private final Thread worker;
+	private volatile boolean running = true;
+	private long tick = 0;
+
+	private final class WheelTask implements SocketIOSession.SessionTask {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+		private long remainingRounds;
+		private Bucket bucket;
+		private WheelTask prev;
+		private WheelTask next;
+
+		WheelTask(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public boolean cancel() {
+			if (state.compareAndSet(ST_PENDING, ST_CANCELED)) {
+				canceled.offer(this);
+				return true;
+			}
+			return state.get() == ST_CANCELED;
+		}
+
+		void expire() {
+			if (state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					Log.warn("Session task threw an exception", t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of tasks so that a canceled task can be unlinked in constant time.
+	 * Only ever accessed by the worker thread.
+	 */
+	private static final class Bucket {
+		private WheelTask head;
+		private WheelTask tail;
+
+		void add(WheelTask task) {
+			task.bucket = this;
+			if (head == null) {
+				head = tail = task;
+			} else {
+				tail.next = task;
+				task.prev = tail;
+				tail = task;
+			}
+		}
+
+		void remove(WheelTask task) {
+			if (task.prev != null) {
+				task.prev.next = task.next;
+			} else {
+				head = task.next;
+			}
+			if (task.next != null) {
+				task.next.prev = task.prev;
+			} else {
+				tail = task.prev;
+			}
+			task.prev = null;
+			task.next = null;
+			task.bucket = null;
+		}
+
+		void expire() {
+			WheelTask task = head;
+			while (task != null) {
+				WheelTask next = task.next;
+				if (task.remainingRounds <= 0) {
+					remove(task);
+					task.expire();
+				} else {
+					task.remainingRounds--;
+				}
+				task = next;
+			}
+		}
+	}
+
+	public HashedWheelTaskScheduler() {
+		this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param tickDuration Duration of one tick in milliseconds.
+	 * @param wheelSize Number of buckets, rounded up to a power of two.
+	 */
+	public HashedWheelTaskScheduler(long tickDuration, int wheelSize) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("wheelSize must be between 1 and 2^30: " + wheelSize);
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWorker();
+			}
+		}, "SocketIO-SessionTimer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	@Override
+	public SocketIOSession.SessionTask schedule(Runnable task, long delay) {
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		WheelTask wheelTask = new WheelTask(task, deadline);
+		if (running) {
+			scheduled.offer(wheelTask);
+		} else {
+			wheelTask.state.set(ST_CANCELED);
+		}
+		return wheelTask;
+	}
+
+	@Override
+	public void shutdown() {
+		running = false;
+		worker.interrupt();
+	}
+
+	/**
+	 * @return The number of tasks waiting to be placed on the wheel or unlinked from it.
+	 */
+	public int getQueuedCount() {
+		return scheduled.size() + canceled.size();
+	}
+
+	private void runWorker() {
+		while (running) {
+			if (!waitForNextTick()) {
+				break;
+			}
+			unlinkCanceled();
+			transferScheduled();
+			wheel[(int)(tick & mask)].expire();
+			tick++;
+		}
+		scheduled.clear();
+		canceled.clear();
+	}
+
+	/**
+	 * @return false if the worker was interrupted by shutdown.
+	 */
+	private boolean waitForNextTick() {
+		long deadline = tickDuration * (tick + 1);
+		for (;;) {
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos <= 0) {
+				return true;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				if (!running) {
+					return false;
+				}
+			}
+		}
+	}
+
+	private void unlinkCanceled() {
+		WheelTask task;
+		while ((task = canceled.poll()) != null) {
+			if (task.bucket != null) {
+				task.bucket.remove(task);
+			}
+		}
+	}
+
+	private void transferScheduled() {
+		WheelTask task;
+		while ((task = scheduled.poll()) != null) {
+			if (task.state.get() != ST_PENDING) {
+				continue;
+			}
+			long ticks = task.deadline / tickDuration;
+			task.remainingRounds = (ticks - tick) / wheel.length;
+			wheel[(int)(Math.max(ticks, tick) & mask)].add(task);
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Tracks the outbound data buffered by all sessions, in UTF-8 bytes, against a server-wide
+ * budget. Once the total rises above the high water mark the configured {@link Reaction}
+ * applies until it falls back to the low water mark.
+ * <p>
+ * Each buffer reports what it holds through its own {@link Account}.
+ */
+public class OutboundMemoryAccountant {
+	public enum Reaction {
+		/**
+		 * Refuse new sessions with 503 Service Unavailable.
+		 */
+		REJECT_SESSIONS,
+		/**
+		 * Disconnect the sessions with the largest buffers until the total is back at the
+		 * low water mark.
+		 */
+		SHED_LARGEST,
+		/**
+		 * Make producers wait in sendMessage() until the total is back at the low water mark.
+		 */
+		THROTTLE;
+
+		/**
+		 * @param value Case-insensitive name, '-' may be used in place of '_'.
+		 */
+		public static Reaction fromString(String value) {
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/**
+	 * Something whose buffered data can be discarded to free memory.
+	 */
+	public interface Sheddable {
+		/**
+		 * Discard everything buffered and release the account. Called from the
+		 * accountant's shedding thread, so it may take locks and block.
+		 */
+		void shed();
+	}
+
+	/**
+	 * The share of the budget used by one buffer.
+	 */
+	public final class Account {
+		private final Sheddable owner;
+		private final AtomicLong bytes = new AtomicLong();
+		private volatile boolean closed = false;
+		// Snapshot of bytes that the shedding sort can rely on not to change.
+		private long shedSize;
+
+		private Account(Sheddable owner) {
+			this.owner = owner;
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * Add to what the account holds. Nothing once it is closed. A negative size, as
+		 * when a conflated message shrinks, is a {@link #release(long)}.
+		 */
+		public void allocate(long size) {
+			if (size < 0) {
+				release(-size);
+				return;
+			}
+			if (closed) {
+				return;
+			}
+			bytes.addAndGet(size);
+			OutboundMemoryAccountant.this.allocate(size);
+			if (closed) {
+				// Raced with close(), which may not have seen this allocation.
+				long taken = take(size);
+				if (taken != 0) {
+					OutboundMemoryAccountant.this.release(taken);
+				}
+			}
+		}
+
+		/**
+		 * Release at most what the account still holds, nothing once it is closed.
+		 */
+		public void release(long size) {
+			if (closed) {
+				return;
+			}
+			long taken = take(size);
+			if (taken != 0) {
+				OutboundMemoryAccountant.this.release(taken);
+			}
+		}
+
+		/**
+		 * Release whatever is still allocated and stop tracking this account. Later
+		 * allocations and releases have no effect on the total.
+		 */
+		public void close() {
+			closed = true;
+			accounts.remove(this);
+			long remaining = bytes.getAndSet(0);
+			if (remaining != 0) {
+				OutboundMemoryAccountant.this.release(remaining);
+			}
+		}
+
+		/**
+		 * Subtract up to size from bytes without going below 0.
+		 * @return The amount subtracted.
+		 */
+		private long take(long size) {
+			for (;;) {
+				long current = bytes.get();
+				long taken = Math.min(size, current);
+				if (taken <= 0) {
+					return 0;
+				}
+				if (bytes.compareAndSet(current, current - taken)) {
+					return taken;
+				}
+			}
+		}
+
+		/**
+		 * Wait while producers are being throttled.
+		 * @param timeout Maximum time to wait, in milliseconds.
+		 * @return false if still throttled after the timeout.
+		 */
+		public boolean awaitCapacity(long timeout) {
+			return OutboundMemoryAccountant.this.awaitCapacity(timeout);
+		}
+	}
+
+	private static final Comparator<Account> LARGEST_FIRST = new Comparator<Account>() {
+		@Override
+		public int compare(Account a, Account b) {
+			long x = a.shedSize;
+			long y = b.shedSize;
+			return x > y ? -1 : (x == y ? 0 : 1);
+		}
+	};
+
+	private static final long SHED_RETRY_DELAY = 1000;
+
+	private final long highWaterMark;
+	private final long lowWaterMark;
+	private final Reaction reaction;
+	private final SocketIOSession.SessionTaskScheduler scheduler;
+	// Runs shedding off the scheduler's thread; its one thread only lives while there is work.
+	private final ThreadPoolExecutor shedExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SocketIO-Shed");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private final Set<Account> accounts =
+		Collections.newSetFromMap(new ConcurrentHashMap<Account, Boolean>());
+	private final AtomicLong used = new AtomicLong();
+	private final AtomicLong peak = new AtomicLong();
+	private final AtomicBoolean over = new AtomicBoolean();
+	private final AtomicBoolean shedding = new AtomicBoolean();
+	private final AtomicLong rejectedSessions = new AtomicLong();
+	private final AtomicLong shedSessions = new AtomicLong();
+	private final AtomicLong throttledSends = new AtomicLong();
+	private final Object throttleLock = new Object();
+
+	/**
+	 * @param highWaterMark Total bytes above which the reaction applies.
+	 * @param lowWaterMark Total bytes at or below which the reaction stops applying.
+	 * @param reaction
+	 * @param scheduler Times retries of shedding when the reaction is SHED_LARGEST. The
+	 * shedding itself runs on the accountant's own thread.
+	 */
+	public OutboundMemoryAccountant(long highWaterMark, long lowWaterMark, Reaction reaction,
+			SocketIOSession.SessionTaskScheduler scheduler) {
+		if (lowWaterMark > highWaterMark) {
+			throw new IllegalArgumentException("lowWaterMark " + lowWaterMark +
+					" is above highWaterMark " + highWaterMark);
+		}
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = lowWaterMark;
+		this.reaction = reaction;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @param owner Called to free memory when the reaction is SHED_LARGEST.
+	 */
+	public Account newAccount(Sheddable owner) {
+		Account account = new Account(owner);
+		accounts.add(account);
+		return account;
+	}
+
+	/**
+	 * @return The number of bytes str takes up when encoded as UTF-8.
+	 */
+	public static int utf8Length(CharSequence str) {
+		int len = str.length();
+		int bytes = len;
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < len &&
+						Character.isLowSurrogate(str.charAt(i + 1))) {
+					// Four bytes for the pair.
+					bytes += 2;
+					i++;
+				} else {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	public Reaction getReaction() {
+		return reaction;
+	}
+
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	public long getLowWaterMark() {
+		return lowWaterMark;
+	}
+
+	/**
+	 * @return Total bytes currently buffered.
+	 */
+	public long getUsedBytes() {
+		return used.get();
+	}
+
+	/**
+	 * @return Highest total seen since this accountant was created.
+	 */
+	public long getPeakBytes() {
+		return peak.get();
+	}
+
+	public int getAccountCount() {
+		return accounts.size();
+	}
+
+	/**
+	 * @return true from when the high water mark is crossed until the low water mark is reached.
+	 */
+	public boolean isOverWatermark() {
+		return over.get();
+	}
+
+	public long getRejectedSessionCount() {
+		return rejectedSessions.get();
+	}
+
+	public long getShedSessionCount() {
+		return shedSessions.get();
+	}
+
+	public long getThrottledSendCount() {
+		return throttledSends.get();
+	}
+
+	/**
+	 * Check whether a new session may be created, counting it as rejected if not.
+	 */
+	public boolean acceptSession() {
+		if (reaction == Reaction.REJECT_SESSIONS && over.get()) {
+			rejectedSessions.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private void allocate(long size) {
+		long total = used.addAndGet(size);
+		long max;
+		while (total > (max = peak.get()) && !peak.compareAndSet(max, total)) {
+			// retry
+		}
+		if (total > highWaterMark && over.compareAndSet(false, true)) {
+			Log.warn("Outbound buffers hold " + total + " bytes, above high water mark of " +
+					highWaterMark + ": " + reaction);
+			if (reaction == Reaction.SHED_LARGEST) {
+				scheduleShed();
+			}
+		}
+	}
+
+	private void release(long size) {
+		long total = used.addAndGet(-size);
+		if (total <= lowWaterMark && over.compareAndSet(true, false)) {
+			Log.info("Outbound buffers hold " + total + " bytes, back under low water mark of " +
+					lowWaterMark);
+			if (reaction == Reaction.THROTTLE) {
+				synchronized (throttleLock) {
+					throttleLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private boolean awaitCapacity(long timeout) {
+		if (reaction != Reaction.THROTTLE || !over.get()) {
+			return true;
+		}
+		throttledSends.incrementAndGet();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		try {
+			synchronized (throttleLock) {
+				while (over.get()) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(throttleLock, remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the shedding thread. Sessions are no longer shed afterwards.
+	 */
+	public void shutdown() {
+		shedExecutor.shutdownNow();
+	}
+
+	/**
+	 * Shedding disconnects sessions, which takes their locks and may block writing to them,
+	 * so it runs on the shedding thread: never on the thread that crossed the high water mark,
+	 * nor on the scheduler's thread, whose tasks must not block.
+	 */
+	private void scheduleShed() {
+		if (shedding.compareAndSet(false, true)) {
+			submitShed();
+		}
+	}
+
+	private void submitShed() {
+		try {
+			shedExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						shed();
+					} finally {
+						shedding.set(false);
+					}
+					if (used.get() > lowWaterMark && over.get() && shedding.compareAndSet(false, true)) {
+						scheduler.schedule(new Runnable() {
+							@Override
+							public void run() {
+								submitShed();
+							}
+						}, SHED_RETRY_DELAY);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shut down.
+			shedding.set(false);
+		}
+	}
+
+	private void shed() {
+		List<Account> largest = new ArrayList<Account>(accounts);
+		for (Account account: largest) {
+			account.shedSize = account.getBytes();
+		}
+		Collections.sort(largest, LARGEST_FIRST);
+		for (Account account: largest) {
+			if (used.get() <= lowWaterMark) {
+				break;
+			}
+			if (account.shedSize == 0) {
+				break;
+			}
+			shedSessions.incrementAndGet();
+			try {
+				account.owner.shed();
+			} catch (Throwable t) {
+				Log.warn("Exception thrown while shedding outbound buffer", t);
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The parts of a Socket.IO request path, {@code /<transport>/<session id>/<timestamp or send>/<index>},
+ * found in a single pass over the path info. Segments are kept as offsets into the path,
+ * so nothing is copied until a caller asks for the session id.
+ * <p>
+ * The servlet parses each request once and leaves the result in a request attribute,
+ * where {@link #of(HttpServletRequest)} finds it for the transports.
+ */
+public final class RequestPath {
+	public static final String ATTRIBUTE_NAME = RequestPath.class.getName();
+	private static final int MAX_SEGMENTS = 4;
+	private static final String SEND = "send";
+
+	private final String path;
+	// Start and end of each segment.
+	private final int[] bounds = new int[MAX_SEGMENTS * 2];
+	private int count = 0;
+	private String sessionId = null;
+
+	private RequestPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * @return The path of request, parsed on first use, or null if it has no transport segment.
+	 */
+	public static RequestPath of(HttpServletRequest request) {
+		Object obj = request.getAttribute(ATTRIBUTE_NAME);
+		if (obj != null) {
+			return (RequestPath)obj;
+		}
+		RequestPath path = parse(request.getPathInfo());
+		if (path != null) {
+			request.setAttribute(ATTRIBUTE_NAME, path);
+		}
+		return path;
+	}
+
+	/**
+	 * Split path on '/', ignoring a leading '/' and trailing empty segments. Segments after
+	 * the fourth are ignored.
+	 * @return The parsed path, or null if it has no transport segment.
+	 */
+	public static RequestPath parse(String path) {
+		if (path == null) {
+			return null;
+		}
+		int len = path.length();
+		int start = len > 0 && path.charAt(0) == '/' ? 1 : 0;
+		RequestPath parsed = new RequestPath(path);
+		int[] bounds = parsed.bounds;
+		int count = 0;
+		while (count < MAX_SEGMENTS && start <= len) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = len;
+			}
+			bounds[count * 2] = start;
+			bounds[count * 2 + 1] = end;
+			count++;
+			start = end + 1;
+		}
+		while (count > 0 && bounds[count * 2 - 2] == bounds[count * 2 - 1]) {
+			count--;
+		}
+		if (count == 0) {
+			return null;
+		}
+		parsed.count = count;
+		return parsed;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return The number of segments, at most four.
+	 */
+	public int getSegmentCount() {
+		return count;
+	}
+
+	/**
+	 * @return true if segment index exists and is equal to value.
+	 */
+	public boolean segmentEquals(int index, String value) {
+		if (index >= count) {
+			return false;
+		}
+		int start = bounds[index * 2];
+		int length = bounds[index * 2 + 1] - start;
+		return length == value.length() && path.regionMatches(start, value, 0, length);
+	}
+
+	public boolean isTransport(String name) {
+		return segmentEquals(0, name);
+	}
+
+	/**
+	 * @return The session id, or null if there is none.
+	 */
+	public String getSessionId() {
+		if (sessionId == null && count > 1 && bounds[3] > bounds[2]) {
+			sessionId = path.substring(bounds[2], bounds[3]);
+		}
+		return sessionId;
+	}
+
+	public boolean hasSessionId() {
+		return count > 1 && bounds[3] > bounds[2];
+	}
+
+	/**
+	 * @return true for messages posted by the client, whose path ends in /send.
+	 */
+	public boolean isSend() {
+		return segmentEquals(2, SEND);
+	}
+
+	/**
+	 * @return The cache busting timestamp of a polling request, or -1 if there is none.
+	 */
+	public long getTimestamp() {
+		return parseNumber(2);
+	}
+
+	/**
+	 * @return The JSONP callback index, or -1 if there is none.
+	 */
+	public int getIndex() {
+		long index = parseNumber(3);
+		return index > Integer.MAX_VALUE ? -1 : (int)index;
+	}
+
+	/**
+	 * @return The decimal value of segment index, or -1 if it is missing or not a number.
+	 */
+	private long parseNumber(int index) {
+		if (index >= count) {
+			return -1;
+		}
+		int start = bounds[index * 2];
+		int end = bounds[index * 2 + 1];
+		if (start == end || end - start > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = path.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
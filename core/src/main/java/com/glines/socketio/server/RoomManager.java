@@ -0,0 +1,316 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Named groups of sessions that messages can be broadcast to.
+ * <p>
+ * A room holds its members as a {@link SlotSet} of their {@link SessionRegistry} slots, so
+ * membership costs a few bytes per member in small rooms and one bit per slot in large
+ * ones. Broadcasts read the membership without locking and hand the same encoded
+ * {@link SocketIOMessage} to every member with
+ * {@link SocketIOOutbound#sendMessage(SocketIOMessage, SocketIOOutbound.SendCallback)},
+ * so a slow member never holds up the others.
+ * <p>
+ * A room exists while it has members. Sessions leave all their rooms when they shut down.
+ * <p>
+ * With a {@link ClusterBus}, broadcasts also reach the room's members on the other nodes.
+ * Counts and {@link Broadcast} handles only cover the members on this node.
+ */
+public class RoomManager {
+	private static final SocketIOOutbound.SendCallback BROADCAST_CALLBACK = new SocketIOOutbound.SendCallback() {
+		@Override
+		public void onSent() {
+		}
+
+		@Override
+		public void onFailed(Throwable cause) {
+			Log.debug("Broadcast not delivered: " + cause);
+		}
+	};
+
+	private static final class Room {
+		final String name;
+		// Changed under the room's lock.
+		final SlotSet members = new SlotSet();
+		boolean removed = false;
+
+		Room(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * The rooms a session is in. The lock is taken before any room's lock.
+	 */
+	private static final class Membership {
+		final List<Room> rooms = new ArrayList<Room>(4);
+		boolean closed = false;
+	}
+
+	private final SessionRegistry registry;
+	private volatile BroadcastExecutor broadcastExecutor = null;
+	private volatile ClusterForwarder forwarder = null;
+	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	private final ConcurrentMap<SocketIOSession, Membership> memberships =
+		new ConcurrentHashMap<SocketIOSession, Membership>();
+
+	public RoomManager(SessionRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Set the executor that {@link #broadcastAsync(String, SocketIOMessage, SocketIOOutbound)}
+	 * fans out on. Without one, broadcasts are delivered on the caller's thread.
+	 */
+	public void setBroadcastExecutor(BroadcastExecutor executor) {
+		this.broadcastExecutor = executor;
+	}
+
+	public BroadcastExecutor getBroadcastExecutor() {
+		return broadcastExecutor;
+	}
+
+	/**
+	 * Add a session to a room, creating the room if needed.
+	 * @return true if the session was added, false if it already was a member or is not live.
+	 */
+	public boolean join(String room, SocketIOOutbound member) {
+		SocketIOSession session = registry.get(member.getSessionId());
+		if (session == null) {
+			return false;
+		}
+		Membership membership = memberships.get(session);
+		if (membership == null) {
+			membership = new Membership();
+			Membership existing = memberships.putIfAbsent(session, membership);
+			if (existing != null) {
+				membership = existing;
+			}
+		}
+		synchronized (membership) {
+			// Checked under the lock, so that the session can't shut down and give up its
+			// slot while it is being added.
+			if (membership.closed || registry.get(session.getSessionId()) != session) {
+				if (!membership.closed) {
+					// The session was released, and possibly forgotten, after it was looked
+					// up, so nothing else will remove the membership this call inserted.
+					memberships.remove(session, membership);
+				}
+				return false;
+			}
+			for (;;) {
+				Room r = rooms.get(room);
+				if (r == null) {
+					r = new Room(room);
+					Room existing = rooms.putIfAbsent(room, r);
+					if (existing != null) {
+						r = existing;
+					}
+				}
+				synchronized (r) {
+					if (r.removed) {
+						// Emptied and dropped meanwhile, try again.
+						continue;
+					}
+					if (!r.members.add(session.getSlot())) {
+						return false;
+					}
+				}
+				membership.rooms.add(r);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the session was a member of the room.
+	 */
+	public boolean leave(String room, SocketIOOutbound member) {
+		SocketIOSession session = registry.get(member.getSessionId());
+		Membership membership = session == null ? null : memberships.get(session);
+		if (membership == null) {
+			return false;
+		}
+		synchronized (membership) {
+			for (int i = 0; i < membership.rooms.size(); i++) {
+				Room r = membership.rooms.get(i);
+				if (r.name.equals(room)) {
+					membership.rooms.remove(i);
+					remove(r, session.getSlot());
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the session is a member of the room.
+	 */
+	public boolean isMember(String room, SocketIOOutbound member) {
+		Room r = rooms.get(room);
+		SocketIOSession session = registry.get(member.getSessionId());
+		return r != null && session != null && r.members.contains(session.getSlot());
+	}
+
+	/**
+	 * @return The number of members of the room, 0 if it doesn't exist.
+	 */
+	public int getMemberCount(String room) {
+		Room r = rooms.get(room);
+		return r == null ? 0 : r.members.size();
+	}
+
+	/**
+	 * Send a message to every member of a room.
+	 * @return The number of members the message was handed to.
+	 */
+	public int broadcast(String room, SocketIOMessage message) {
+		return broadcast(room, message, null);
+	}
+
+	/**
+	 * Send a message to every member of a room except one, typically the sender.
+	 * @param except The member to skip, or null.
+	 * @return The number of members the message was handed to.
+	 */
+	public int broadcast(String room, final SocketIOMessage message, SocketIOOutbound except) {
+		forward(room, message);
+		Room r = rooms.get(room);
+		if (r == null) {
+			return 0;
+		}
+		SocketIOSession excluded = except == null ? null : registry.get(except.getSessionId());
+		final int excludedSlot = excluded == null ? -1 : excluded.getSlot();
+		final int[] count = new int[1];
+		r.members.forEach(new SlotSet.Visitor() {
+			@Override
+			public void visit(int slot) {
+				if (slot == excludedSlot) {
+					return;
+				}
+				SocketIOSession session = registry.get(slot);
+				SocketIOSession.SessionTransportHandler handler = session == null ? null : session.getTransportHandler();
+				if (handler != null) {
+					handler.sendMessage(message, BROADCAST_CALLBACK);
+					count[0]++;
+				}
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Send a message to every member of a room except one, spreading the work over the
+	 * {@link #setBroadcastExecutor(BroadcastExecutor) broadcast executor}. Worth it for large
+	 * rooms, or when members may be slow to accept messages.
+	 * @param except The member to skip, or null.
+	 * @return The progress of the broadcast, which may still be running.
+	 */
+	public Broadcast broadcastAsync(String room, SocketIOMessage message, SocketIOOutbound except) {
+		forward(room, message);
+		SocketIOSession excluded = except == null ? null : registry.get(except.getSessionId());
+		return broadcastLocal(room, message, excluded == null ? -1 : excluded.getSlot());
+	}
+
+	/**
+	 * Deliver a broadcast received from another node to this node's members.
+	 */
+	void deliver(String room, SocketIOMessage message) {
+		broadcastLocal(room, message, -1);
+	}
+
+	void setForwarder(ClusterForwarder forwarder) {
+		this.forwarder = forwarder;
+	}
+
+	private void forward(String room, SocketIOMessage message) {
+		ClusterForwarder f = forwarder;
+		if (f != null) {
+			f.forward(ClusterMessage.Kind.ROOM, room, message);
+		}
+	}
+
+	private Broadcast broadcastLocal(String room, SocketIOMessage message, int excludedSlot) {
+		Broadcast broadcast = new Broadcast(registry, message, excludedSlot);
+		Room r = rooms.get(room);
+		BroadcastExecutor executor = broadcastExecutor;
+		if (r == null) {
+			broadcast.release();
+		} else if (executor == null) {
+			broadcast.deliver(r.members, 0, Integer.MAX_VALUE);
+			broadcast.release();
+		} else {
+			executor.execute(broadcast, r.members, room.hashCode());
+		}
+		return broadcast;
+	}
+
+	/**
+	 * Remove a session from all its rooms and stop it joining any more. Must be called
+	 * before the session is removed from the registry, so that its slot is not reused while
+	 * rooms still contain it.
+	 */
+	void leaveAll(SocketIOSession session) {
+		Membership membership = memberships.get(session);
+		if (membership == null) {
+			membership = new Membership();
+			Membership existing = memberships.putIfAbsent(session, membership);
+			if (existing != null) {
+				membership = existing;
+			}
+		}
+		synchronized (membership) {
+			membership.closed = true;
+			for (Room r: membership.rooms) {
+				remove(r, session.getSlot());
+			}
+			membership.rooms.clear();
+		}
+	}
+
+	/**
+	 * Drop what is known about a session. Must be called after it is removed from the registry.
+	 */
+	void forget(SocketIOSession session) {
+		memberships.remove(session);
+	}
+
+	private void remove(Room r, int slot) {
+		synchronized (r) {
+			r.members.remove(slot);
+			if (r.members.isEmpty()) {
+				r.removed = true;
+				rooms.remove(r.name, r);
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+/**
+ * The parts of a session id that say where the session lives.
+ * <p>
+ * A manager with a node id hands out ids of the form "node.epoch.random": the node id, the
+ * time the manager started in base 36, and the random part that makes the id unguessable,
+ * which is as long as a plain session id. Any server can then tell which node, and which
+ * run of it, a request belongs to without asking it. Ids without a node are plain random
+ * strings.
+ */
+public final class SessionId {
+	public static final char SEPARATOR = '.';
+
+	private final String nodeId;
+	private final long epoch;
+
+	private SessionId(String nodeId, long epoch) {
+		this.nodeId = nodeId;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * @return The id of the node the session was created on.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return The time, in milliseconds, that the node's session manager started.
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	static String format(String nodeId, long epoch, String random) {
+		return nodeId + SEPARATOR + Long.toString(epoch, 36) + SEPARATOR + random;
+	}
+
+	/**
+	 * @return The node and epoch of a session id, or null if it doesn't name a node.
+	 */
+	public static SessionId parse(String sessionId) {
+		int first = sessionId.indexOf(SEPARATOR);
+		int second = first < 0 ? -1 : sessionId.indexOf(SEPARATOR, first + 1);
+		if (second < 0 || second == sessionId.length() - 1) {
+			return null;
+		}
+		String nodeId = sessionId.substring(0, first);
+		if (!isValidNodeId(nodeId)) {
+			return null;
+		}
+		try {
+			return new SessionId(nodeId, Long.parseLong(sessionId.substring(first + 1, second), 36));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if nodeId is 1 to 32 letters, digits, '-' or '_', the characters session
+	 * ids are made of.
+	 */
+	public static boolean isValidNodeId(String nodeId) {
+		int len = nodeId.length();
+		if (len == 0 || len > 32) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			char c = nodeId.charAt(i);
+			if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The live sessions, by session id and by slot.
+ * <p>
+ * Every session is given a slot, a small non-negative int that is unique among the live
+ * sessions and is reused once the session is released. Session ids remain the handles
+ * exposed to clients; slots let server side structures such as groups hold sets of
+ * sessions as bitsets or int keyed tables, without boxing or hashing strings.
+ * <p>
+ * Slots are handed out by a fixed number of stripes, each with its own lock, free list and
+ * table, so sessions can be created and released concurrently. Slot s belongs to stripe
+ * s % stripes. Free slots are reused before new ones are handed out, so the highest slot
+ * in use stays close to the highest number of sessions that were live at once.
+ */
+public class SessionRegistry {
+	public static final int DEFAULT_STRIPES = 16;
+
+	/**
+	 * Receives the sessions visited by {@link SessionRegistry#forEach(Visitor)}.
+	 */
+	public interface Visitor {
+		void visit(int slot, SocketIOSession session);
+	}
+
+	private static final class Stripe {
+		private volatile AtomicReferenceArray<SocketIOSession> sessions =
+			new AtomicReferenceArray<SocketIOSession>(16);
+		// Guarded by this. freeCount may be read without the lock as a hint.
+		private int[] free = new int[16];
+		private volatile int freeCount = 0;
+		private int used = 0;
+
+		/**
+		 * @return Index within this stripe.
+		 */
+		synchronized int allocate() {
+			if (freeCount > 0) {
+				return free[--freeCount];
+			}
+			int index = used++;
+			AtomicReferenceArray<SocketIOSession> current = sessions;
+			if (index == current.length()) {
+				AtomicReferenceArray<SocketIOSession> grown =
+					new AtomicReferenceArray<SocketIOSession>(current.length() * 2);
+				for (int i = 0; i < index; i++) {
+					grown.set(i, current.get(i));
+				}
+				sessions = grown;
+			}
+			return index;
+		}
+
+		synchronized void set(int index, SocketIOSession session) {
+			sessions.set(index, session);
+		}
+
+		synchronized void release(int index) {
+			sessions.set(index, null);
+			if (freeCount == free.length) {
+				int[] grown = new int[free.length * 2];
+				System.arraycopy(free, 0, grown, 0, freeCount);
+				free = grown;
+			}
+			free[freeCount++] = index;
+		}
+
+		SocketIOSession get(int index) {
+			AtomicReferenceArray<SocketIOSession> current = sessions;
+			return index < current.length() ? current.get(index) : null;
+		}
+
+		int getLimit() {
+			return sessions.length();
+		}
+	}
+
+	private final ConcurrentMap<String, SocketIOSession> byId;
+	private final Stripe[] stripes;
+	private final AtomicInteger nextStripe = new AtomicInteger();
+
+	public SessionRegistry() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public SessionRegistry(int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("stripes must be at least 1");
+		}
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.byId = new ConcurrentHashMap<String, SocketIOSession>(64, 0.75f, stripes);
+	}
+
+	/**
+	 * Reserve a slot for a session that is about to be created. The slot must be passed
+	 * to {@link #add(SocketIOSession)}, through the session, or to {@link #releaseSlot(int)}.
+	 */
+	public int allocateSlot() {
+		int start = (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length;
+		// Prefer reusing a free slot in any stripe over growing this one.
+		int stripe = start;
+		for (int i = 0; i < stripes.length; i++) {
+			int candidate = (start + i) % stripes.length;
+			if (stripes[candidate].freeCount > 0) {
+				stripe = candidate;
+				break;
+			}
+		}
+		return stripes[stripe].allocate() * stripes.length + stripe;
+	}
+
+	/**
+	 * Make a session visible under its id and its slot, which must have come from
+	 * {@link #allocateSlot()}.
+	 */
+	public void add(SocketIOSession session) {
+		int slot = session.getSlot();
+		stripes[slot % stripes.length].set(slot / stripes.length, session);
+		byId.put(session.getSessionId(), session);
+	}
+
+	/**
+	 * Remove a session and free its slot for reuse. Only the first call for a session has
+	 * any effect.
+	 * @return true if the session was removed by this call.
+	 */
+	public boolean remove(SocketIOSession session) {
+		if (byId.remove(session.getSessionId(), session)) {
+			releaseSlot(session.getSlot());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Free a slot that was allocated but never added.
+	 */
+	public void releaseSlot(int slot) {
+		stripes[slot % stripes.length].release(slot / stripes.length);
+	}
+
+	/**
+	 * @return The session, or null if there is no live session with that id.
+	 */
+	public SocketIOSession get(String sessionId) {
+		return byId.get(sessionId);
+	}
+
+	/**
+	 * @return The session in the slot, or null if the slot is free.
+	 */
+	public SocketIOSession get(int slot) {
+		if (slot < 0) {
+			return null;
+		}
+		return stripes[slot % stripes.length].get(slot / stripes.length);
+	}
+
+	/**
+	 * @return A bound on the slots currently in use: every live session's slot is less
+	 * than this. Suitable for sizing bitsets and slot indexed arrays.
+	 */
+	public int getSlotLimit() {
+		int limit = 0;
+		for (Stripe stripe: stripes) {
+			limit = Math.max(limit, stripe.getLimit());
+		}
+		return limit * stripes.length;
+	}
+
+	/**
+	 * @return The number of live sessions.
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * Visit every live session in slot order. Sessions added or removed during the
+	 * iteration may or may not be visited.
+	 */
+	public void forEach(Visitor visitor) {
+		int limit = getSlotLimit();
+		for (int slot = 0; slot < limit; slot++) {
+			SocketIOSession session = get(slot);
+			if (session != null) {
+				visitor.visit(slot, session);
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of session slots. Small sets are kept as a sorted int array, which is replaced on
+ * every change; sets of more than {@link #SMALL_MAX} slots switch to a bitset, which costs
+ * one bit per slot up to the highest member whatever the number of members.
+ * <p>
+ * Changes must be serialized by the caller. {@link #contains(int)}, {@link #size()} and
+ * {@link #forEach(Visitor)} may be called concurrently with a change, and see the set
+ * either with or without it.
+ */
+final class SlotSet {
+	static final int SMALL_MAX = 64;
+	private static final int[] EMPTY = new int[0];
+
+	interface Visitor {
+		void visit(int slot);
+	}
+
+	// Either an int[] or an AtomicLongArray.
+	private volatile Object members = EMPTY;
+	private volatile int size = 0;
+
+	boolean add(int slot) {
+		Object m = members;
+		if (m instanceof int[]) {
+			int[] small = (int[])m;
+			int pos = Arrays.binarySearch(small, slot);
+			if (pos >= 0) {
+				return false;
+			}
+			if (small.length < SMALL_MAX) {
+				pos = -pos - 1;
+				int[] grown = new int[small.length + 1];
+				System.arraycopy(small, 0, grown, 0, pos);
+				grown[pos] = slot;
+				System.arraycopy(small, pos, grown, pos + 1, small.length - pos);
+				members = grown;
+				size = grown.length;
+				return true;
+			}
+			AtomicLongArray words = new AtomicLongArray(wordCount(Math.max(slot, small[small.length - 1])));
+			for (int s: small) {
+				words.set(s >>> 6, words.get(s >>> 6) | (1L << s));
+			}
+			members = words;
+			m = words;
+		}
+		AtomicLongArray words = (AtomicLongArray)m;
+		int index = slot >>> 6;
+		if (index >= words.length()) {
+			AtomicLongArray grown = new AtomicLongArray(wordCount(slot));
+			for (int i = 0; i < words.length(); i++) {
+				grown.set(i, words.get(i));
+			}
+			members = grown;
+			words = grown;
+		}
+		long word = words.get(index);
+		long bit = 1L << slot;
+		if ((word & bit) != 0) {
+			return false;
+		}
+		words.set(index, word | bit);
+		size++;
+		return true;
+	}
+
+	boolean remove(int slot) {
+		Object m = members;
+		if (m instanceof int[]) {
+			int[] small = (int[])m;
+			int pos = Arrays.binarySearch(small, slot);
+			if (pos < 0) {
+				return false;
+			}
+			int[] shrunk = small.length == 1 ? EMPTY : new int[small.length - 1];
+			System.arraycopy(small, 0, shrunk, 0, pos);
+			System.arraycopy(small, pos + 1, shrunk, pos, small.length - pos - 1);
+			members = shrunk;
+			size = shrunk.length;
+			return true;
+		}
+		AtomicLongArray words = (AtomicLongArray)m;
+		int index = slot >>> 6;
+		long bit = 1L << slot;
+		if (index >= words.length() || (words.get(index) & bit) == 0) {
+			return false;
+		}
+		words.set(index, words.get(index) & ~bit);
+		size--;
+		if (size <= SMALL_MAX / 4) {
+			// Few enough left that the array is smaller and faster to iterate.
+			final int[] small = new int[size];
+			forEach(new Visitor() {
+				private int i = 0;
+
+				@Override
+				public void visit(int s) {
+					small[i++] = s;
+				}
+			});
+			members = small;
+		}
+		return true;
+	}
+
+	boolean contains(int slot) {
+		Object m = members;
+		if (m instanceof int[]) {
+			return Arrays.binarySearch((int[])m, slot) >= 0;
+		}
+		AtomicLongArray words = (AtomicLongArray)m;
+		int index = slot >>> 6;
+		return index < words.length() && (words.get(index) & (1L << slot)) != 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return A bound on the members: every member is less than this.
+	 */
+	int getSlotLimit() {
+		Object m = members;
+		if (m instanceof int[]) {
+			int[] small = (int[])m;
+			return small.length == 0 ? 0 : small[small.length - 1] + 1;
+		}
+		return ((AtomicLongArray)m).length() << 6;
+	}
+
+	/**
+	 * @return The smallest member not less than fromSlot, or -1 if there is none.
+	 */
+	int nextSlot(int fromSlot) {
+		Object m = members;
+		if (m instanceof int[]) {
+			int[] small = (int[])m;
+			int pos = Arrays.binarySearch(small, fromSlot);
+			if (pos < 0) {
+				pos = -pos - 1;
+			}
+			return pos < small.length ? small[pos] : -1;
+		}
+		AtomicLongArray words = (AtomicLongArray)m;
+		for (int i = fromSlot >>> 6; i < words.length(); i++) {
+			long word = words.get(i);
+			if (i == fromSlot >>> 6) {
+				word &= -1L << fromSlot;
+			}
+			if (word != 0) {
+				return (i << 6) + Long.numberOfTrailingZeros(word);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Visit the members in ascending order.
+	 */
+	void forEach(Visitor visitor) {
+		forEach(visitor, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Visit the members from fromSlot, inclusive, to toSlot, exclusive, in ascending order.
+	 */
+	void forEach(Visitor visitor, int fromSlot, int toSlot) {
+		Object m = members;
+		if (m instanceof int[]) {
+			for (int slot: (int[])m) {
+				if (slot >= toSlot) {
+					break;
+				}
+				if (slot >= fromSlot) {
+					visitor.visit(slot);
+				}
+			}
+			return;
+		}
+		AtomicLongArray words = (AtomicLongArray)m;
+		int end = (int)Math.min(words.length(), ((long)toSlot + 63) >>> 6);
+		for (int i = fromSlot >>> 6; i < end; i++) {
+			long word = words.get(i);
+			if (i == fromSlot >>> 6) {
+				word &= -1L << fromSlot;
+			}
+			if (i == toSlot >>> 6) {
+				word &= ~(-1L << toSlot);
+			}
+			while (word != 0) {
+				visitor.visit((i << 6) + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+	}
+
+	private static int wordCount(int maxSlot) {
+		// Leave room to grow.
+		return ((maxSlot >>> 6) + 1) * 2;
+	}
+}
@@ -72,62 +72,180 @@ public class SocketIOFrame {
 	public static final int TEXT_MESSAGE_TYPE = 0;
 	public static final int JSON_MESSAGE_TYPE = 1;
 	
-	private static boolean isHexDigit(String str, int start, int end) {
+	/**
+	 * Receives the frames found by {@link SocketIOFrame#parse(CharSequence, FrameVisitor)}.
+	 */
+	public interface FrameVisitor {
+		/**
+		 * @param frameType The frame type.
+		 * @param messageType The message type.
+		 * @param data A view of the frame payload within the parsed input. The view is reused
+		 * 		for the next frame, so it is only valid for the duration of this call. Use
+		 * 		toString() to retain it.
+		 * @return false to stop parsing after this frame.
+		 */
+		boolean onFrame(FrameType frameType, int messageType, CharSequence data);
+	}
+
+	/**
+	 * A window onto a region of another CharSequence. Avoids copying frame payloads that
+	 * are only inspected or converted once.
+	 */
+	private static final class Slice implements CharSequence {
+		private CharSequence source;
+		private int start;
+		private int end;
+
+		void set(CharSequence source, int start, int end) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException("index: " + index);
+			}
+			return source.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException("from: " + from + ", to: " + to);
+			}
+			return source.subSequence(start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return source.subSequence(start, end).toString();
+		}
+	}
+
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode the hex number in data[start, end).
+	 * @return The value or -1 if the range is empty, contains a non hex digit or overflows.
+	 */
+	private static int parseHex(CharSequence data, int start, int end) {
+		if (start >= end) {
+			return -1;
+		}
+		int value = 0;
 		for (int i = start; i < end; i++) {
-			char c = str.charAt(i);
-			if (!Character.isDigit(c) &&
-					c < 'A' && c > 'F' && c < 'a' && c > 'f') {
-				return false;
+			int digit = hexValue(data.charAt(i));
+			if (digit < 0 || value > (Integer.MAX_VALUE >> 4)) {
+				return -1;
 			}
+			value = (value << 4) | digit;
 		}
-		return true;
+		return value;
 	}
-	
-	public static List<SocketIOFrame> parse(String data) {
-		List<SocketIOFrame> messages = new ArrayList<SocketIOFrame>();
+
+	private static int indexOf(CharSequence data, char c, int start) {
+		for (int i = start, len = data.length(); i < len; i++) {
+			if (data.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The type of the first frame in encoded, or UNKNOWN if it isn't a frame.
+	 */
+	public static FrameType frameTypeOf(CharSequence encoded) {
+		if (encoded.length() < 2 || encoded.charAt(0) != SEPERATOR_CHAR) {
+			return FrameType.UNKNOWN;
+		}
+		return FrameType.fromInt(hexValue(encoded.charAt(1)));
+	}
+
+	/**
+	 * Parse the frames contained in data without copying them.
+	 * Parsing silently stops at the first part that fails to parse properly.
+	 *
+	 * @param data The encoded frames.
+	 * @param visitor Called once per frame, in order.
+	 * @return The index just past the last frame handed to the visitor.
+	 */
+	public static int parse(CharSequence data, FrameVisitor visitor) {
+		Slice slice = new Slice();
+		int length = data.length();
 		int idx = 0;
 
-		// Parse the data and silently ignore any part that fails to parse properly.
-		while (data.length() > idx && data.charAt(idx) == SEPERATOR_CHAR) {
+		while (length > idx && data.charAt(idx) == SEPERATOR_CHAR) {
 			int start = idx + 1;
-			int end = data.indexOf(SEPERATOR_CHAR, start);
+			int end = indexOf(data, SEPERATOR_CHAR, start);
 
-			if (-1 == end || start == end || !isHexDigit(data, start, end)) {
+			if (-1 == end || start == end) {
 				break;
 			}
 
-			int mtype = 0;
-			int ftype = Integer.parseInt(data.substring(start, start + 1), 16);
-
+			int ftype = hexValue(data.charAt(start));
 			FrameType frameType = FrameType.fromInt(ftype);
 			if (frameType == FrameType.UNKNOWN) {
 				break;
 			}
 
+			int mtype = 0;
 			if (end - start > 1) {
-				mtype = Integer.parseInt(data.substring(start + 1, end), 16);
+				mtype = parseHex(data, start + 1, end);
+				if (mtype < 0) {
+					break;
+				}
 			}
-			
-			start = end + 1;
-			end = data.indexOf(SEPERATOR_CHAR, start);
 
-			if (-1 == end || start == end || !isHexDigit(data, start, end)) {
+			start = end + 1;
+			end = indexOf(data, SEPERATOR_CHAR, start);
+			int size = end == -1 ? -1 : parseHex(data, start, end);
+			if (size < 0) {
 				break;
 			}
-			
-			int size = Integer.parseInt(data.substring(start, end), 16);
 
 			start = end + 1;
 			end = start + size;
 
-			if (data.length() < end) {
+			if (length < end) {
 				break;
 			}
-			
-			messages.add(new SocketIOFrame(frameType, mtype, data.substring(start, end)));
+
+			slice.set(data, start, end);
 			idx = end;
+			if (!visitor.onFrame(frameType, mtype, slice)) {
+				break;
+			}
 		}
-		
+
+		return idx;
+	}
+
+	public static List<SocketIOFrame> parse(String data) {
+		final List<SocketIOFrame> messages = new ArrayList<SocketIOFrame>();
+		parse(data, new FrameVisitor() {
+			@Override
+			public boolean onFrame(FrameType frameType, int messageType, CharSequence payload) {
+				messages.add(new SocketIOFrame(frameType, messageType, payload.toString()));
+				return true;
+			}
+		});
 		return messages;
 	}
 	
@@ -145,9 +263,21 @@ public class SocketIOFrame {
 		return str.toString();
 	}
 	
+	/**
+	 * A transport specific wrapper around an encoded frame, e.g. a script tag.
+	 * Implementations must always produce the same result for the same input so that
+	 * the result can be cached on the frame by {@link SocketIOFrame#encode(Envelope)}.
+	 */
+	public interface Envelope {
+		String wrap(String encodedFrame);
+	}
+
 	private final FrameType frameType;
 	private final int messageType;
 	private final String data;
+	private volatile String encoded = null;
+	private volatile Object[] wrapped = null;
+	private volatile byte[] binary = null;
 	
 	public SocketIOFrame(FrameType frameType, int messageType, String data) {
 		this.frameType = frameType;
@@ -167,7 +297,43 @@ public class SocketIOFrame {
 		return data;
 	}
 	
+	/**
+	 * The encoding is computed on first use and then shared, so a frame sent to many
+	 * sessions is only encoded once.
+	 */
 	public String encode() {
-		return encode(frameType, messageType, data);
+		String str = encoded;
+		if (str == null) {
+			str = encode(frameType, messageType, data);
+			encoded = str;
+		}
+		return str;
+	}
+
+	/**
+	 * @return The frame in {@link BinaryFrameCodec} form. Like {@link #encode()} this is
+	 * 		only computed once, so callers must not modify the array.
+	 */
+	public byte[] encodeBinary() {
+		byte[] bytes = binary;
+		if (bytes == null) {
+			bytes = BinaryFrameCodec.encode(frameType, messageType, data);
+			binary = bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The encoded frame wrapped in envelope. The result for the most recently used
+	 * 		envelope is cached.
+	 */
+	public String encode(Envelope envelope) {
+		Object[] pair = wrapped;
+		if (pair != null && pair[0] == envelope) {
+			return (String)pair[1];
+		}
+		String str = envelope.wrap(encode());
+		wrapped = new Object[] {envelope, str};
+		return str;
 	}
 }
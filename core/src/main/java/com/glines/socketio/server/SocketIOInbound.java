@@ -22,9 +22,33 @@
  */
 package com.glines.socketio.server;
 
+import java.nio.ByteBuffer;
+
 import com.glines.socketio.common.DisconnectReason;
 
 public interface SocketIOInbound {
+    /**
+     * Optionally implemented by inbounds that want to throttle themselves instead of relying
+     * on the transport's overflow policy.
+     */
+    interface WritabilityListener {
+        /**
+         * Called when the outbound buffer crosses its high water mark (writable is false) and
+         * when it has drained below its low water mark again (writable is true).
+         */
+        void onWritabilityChanged(boolean writable);
+    }
+
+    /**
+     * Optionally implemented by inbounds that accept raw binary messages from connections
+     * using binary framing. Binary messages arriving at other inbounds are dropped.
+     */
+    interface BinaryListener {
+        /**
+         * @param data Only valid for the duration of the call.
+         */
+        void onMessage(int messageType, ByteBuffer data);
+    }
 
     /**
      * Called when the connection is established. This will only ever be called once.
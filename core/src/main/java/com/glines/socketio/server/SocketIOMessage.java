@@ -0,0 +1,56 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+/**
+ * An immutable data message whose wire encoding is computed once and shared by every
+ * connection it is sent to. Build one per broadcast and pass it to
+ * {@link SocketIOOutbound#sendMessage(SocketIOMessage)} for each recipient.
+ */
+public final class SocketIOMessage {
+	private final SocketIOFrame frame;
+
+	public SocketIOMessage(String message) {
+		this(SocketIOFrame.TEXT_MESSAGE_TYPE, message);
+	}
+
+	public SocketIOMessage(int messageType, String message) {
+		this.frame = new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message);
+		this.frame.encode();
+	}
+
+	public int getMessageType() {
+		return frame.getMessageType();
+	}
+
+	public String getData() {
+		return frame.getData();
+	}
+
+	/**
+	 * @return The DATA frame carrying this message, already encoded.
+	 */
+	public SocketIOFrame getFrame() {
+		return frame;
+	}
+}
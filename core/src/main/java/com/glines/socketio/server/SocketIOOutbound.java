@@ -22,10 +22,30 @@
  */
 package com.glines.socketio.server;
 
+import java.nio.ByteBuffer;
+
 import com.glines.socketio.common.ConnectionState;
 import com.glines.socketio.common.SocketIOException;
 
 public interface SocketIOOutbound {
+    /**
+     * Told the outcome of {@link SocketIOOutbound#sendMessage(SocketIOMessage, SendCallback)}.
+     * Exactly one method is called, possibly on another thread.
+     */
+    interface SendCallback {
+        /**
+         * The message was written to the connection or, for transports that buffer messages
+         * between requests, accepted into the session's buffer.
+         */
+        void onSent();
+
+        /**
+         * The message was not sent, because the connection failed or closed, the message did
+         * not fit in the outbound buffer, or it was superseded through its conflation key.
+         */
+        void onFailed(Throwable cause);
+    }
+
     /**
      * Terminate the connection. This method may return before the connection disconnect
      * completes. The onDisconnect() method of the associated SocketInbound will be called
@@ -41,8 +61,26 @@ public interface SocketIOOutbound {
      */
     void close();
 
+    /**
+     * @return The id of the session this outbound belongs to.
+     */
+    String getSessionId();
+
     ConnectionState getConnectionState();
 
+    /**
+     * @return false while the outbound buffer is above its high water mark. Messages sent
+     *         while not writable are subject to the transport's overflow policy. Inbounds that
+     *         implement {@link SocketIOInbound.WritabilityListener} are notified of changes.
+     */
+    boolean isWritable();
+
+    /**
+     * @return true if the connection can carry raw binary payloads, which is only the case
+     *         for WebSocket connections that negotiated binary framing.
+     */
+    boolean isBinary();
+
     /**
      * Send a message to the client. This method will block if the message will not fit in the
      * outbound buffer.
@@ -63,4 +101,60 @@ public interface SocketIOOutbound {
      * @throws SocketIOException
      */
     void sendMessage(int messageType, String message) throws SocketIOException;
+
+    /**
+     * Send a message that only matters until a newer message with the same key is sent, such
+     * as the latest value of a price or position. If a message sent with the same key is still
+     * queued for this connection it is replaced in place, keeping its position in the queue.
+     * Messages that are written straight to the connection are never conflated.
+     *
+     * @param messageType
+     * @param message
+     * @param conflationKey The key to conflate on, or null to queue the message normally.
+     * @throws IllegalStateException if the socket is not CONNECTED.
+     * @throws SocketIOException
+     */
+    void sendMessage(int messageType, String message, String conflationKey) throws SocketIOException;
+
+    /**
+     * Send raw bytes, without base64 or string conversion.
+     *
+     * @param messageType
+     * @param data
+     * @throws IllegalStateException if the socket is not CONNECTED.
+     * @throws SocketIOException if the connection is not {@link #isBinary() binary}.
+     */
+    void sendMessage(int messageType, byte[] data) throws SocketIOException;
+
+    /**
+     * Send the remaining bytes of data, without changing its position.
+     *
+     * @param messageType
+     * @param data
+     * @throws IllegalStateException if the socket is not CONNECTED.
+     * @throws SocketIOException if the connection is not {@link #isBinary() binary}.
+     */
+    void sendMessage(int messageType, ByteBuffer data) throws SocketIOException;
+
+    /**
+     * Send a message that may be shared with other connections. The message is not
+     * re-encoded, so sending the same instance to many connections is cheaper than
+     * calling {@link #sendMessage(int, String)} for each of them.
+     *
+     * @param message
+     * @throws IllegalStateException if the socket is not CONNECTED.
+     * @throws SocketIOException
+     */
+    void sendMessage(SocketIOMessage message) throws SocketIOException;
+
+    /**
+     * Send a message that may be shared with other connections, without waiting for it to be
+     * written. On WebSocket connections this never blocks, not even under the BLOCK overflow
+     * policy: a message that does not fit fails with a SocketIOBufferFullException. This lets
+     * a broadcast to many connections proceed without waiting on the slowest of them.
+     *
+     * @param message
+     * @param callback Told whether the message was sent.
+     */
+    void sendMessage(SocketIOMessage message, SendCallback callback);
 }
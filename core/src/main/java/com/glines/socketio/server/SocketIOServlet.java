@@ -23,8 +23,6 @@
 package com.glines.socketio.server;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,9 +31,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.jetty.util.IO;
-
+import com.glines.socketio.server.cluster.LoopbackClusterBus;
+import com.glines.socketio.server.cluster.RedirectSessionRouter;
+import com.glines.socketio.server.cluster.TcpClusterBus;
+import com.glines.socketio.server.transport.AbstractTransport;
+import com.glines.socketio.server.transport.EventSourceTransport;
 import com.glines.socketio.server.transport.FlashSocketTransport;
+import com.glines.socketio.server.transport.FlushScheduler;
 import com.glines.socketio.server.transport.HTMLFileTransport;
 import com.glines.socketio.server.transport.JSONPPollingTransport;
 import com.glines.socketio.server.transport.WebSocketTransport;
@@ -47,11 +49,73 @@ import com.glines.socketio.server.transport.XHRPollingTransport;
 public abstract class SocketIOServlet extends HttpServlet {
 	public static final String BUFFER_SIZE_INIT_PARAM = "bufferSize";
 	public static final String MAX_IDLE_TIME_INIT_PARAM = "maxIdleTime";
+	public static final String SESSION_TIMER_INIT_PARAM = "sessionTimer";
+	public static final String SESSION_TIMER_WHEEL = "wheel";
+	public static final String SESSION_TIMER_EXECUTOR = "executor";
+	public static final String OUTBOUND_MEMORY_HIGH_WATER_INIT_PARAM = "outboundMemoryHighWater";
+	public static final String OUTBOUND_MEMORY_LOW_WATER_INIT_PARAM = "outboundMemoryLowWater";
+	public static final String OUTBOUND_MEMORY_REACTION_INIT_PARAM = "outboundMemoryReaction";
+	/**
+	 * Seconds that clients may cache socket.io.js and WebSocketMain.swf without revalidating.
+	 * Defaults to 0, so every use is a conditional GET, normally answered with a 304.
+	 */
+	public static final String STATIC_MAX_AGE_INIT_PARAM = "staticMaxAge";
+	/**
+	 * Number of threads that room broadcasts are fanned out on. Defaults to the number of processors.
+	 */
+	public static final String BROADCAST_THREADS_INIT_PARAM = "broadcastThreads";
+	/**
+	 * Number of session slots that a broadcast thread delivers to at a time. Defaults to 4096.
+	 */
+	public static final String BROADCAST_CHUNK_SIZE_INIT_PARAM = "broadcastChunkSize";
+	/**
+	 * Number of chunks a broadcast thread may have queued before broadcasting waits. Defaults to 1024.
+	 */
+	public static final String BROADCAST_QUEUE_SIZE_INIT_PARAM = "broadcastQueueSize";
+	/**
+	 * Number of threads writing delayed flushes and asynchronous sends for all of this servlet's
+	 * transports. Started on first use. Defaults to the number of processors.
+	 */
+	public static final String FLUSH_THREADS_INIT_PARAM = "flushThreads";
+	/**
+	 * Cluster bus that carries room broadcasts and topic publishes to other nodes: "loopback"
+	 * for the servlets in this JVM, or "tcp" for the nodes listed in clusterPeers. None by default.
+	 */
+	public static final String CLUSTER_BUS_INIT_PARAM = "clusterBus";
+	public static final String CLUSTER_BUS_LOOPBACK = "loopback";
+	public static final String CLUSTER_BUS_TCP = "tcp";
+	/**
+	 * "host:port" that the tcp cluster bus listens on.
+	 */
+	public static final String CLUSTER_ADDRESS_INIT_PARAM = "clusterAddress";
+	/**
+	 * Comma separated "host:port" addresses of every node of the tcp cluster bus.
+	 */
+	public static final String CLUSTER_PEERS_INIT_PARAM = "clusterPeers";
+	/**
+	 * Id of this node, embedded in the session ids it hands out. See {@link SessionId}.
+	 */
+	public static final String NODE_ID_INIT_PARAM = "nodeId";
+	/**
+	 * Comma separated "nodeId=baseUrl" list. Requests for sessions of the listed nodes are
+	 * redirected to them instead of being rejected.
+	 */
+	public static final String NODE_URLS_INIT_PARAM = "nodeUrls";
 	public static final int BUFFER_SIZE_DEFAULT = 8192;
 	public static final int MAX_IDLE_TIME_DEFAULT = 300*1000;
 	private static final long serialVersionUID = 1L;
 	private SocketIOSessionManager sessionManager = null;
 	private Map<String, Transport> transports = new HashMap<String, Transport>();
+	// The same transports, for looking them up without creating a key.
+	private Transport[] transportList = new Transport[0];
+	private final Transport.InboundFactory inboundFactory = new Transport.InboundFactory() {
+		@Override
+		public SocketIOInbound getInbound(HttpServletRequest request) {
+			return SocketIOServlet.this.doSocketIOConnect(request);
+		}
+	};
+	private StaticAsset socketIOScript = null;
+	private FlushScheduler flushScheduler = null;
 
 	@Override
 	public void init() throws ServletException {
@@ -61,23 +125,95 @@ public abstract class SocketIOServlet extends HttpServlet {
 		str = this.getInitParameter(MAX_IDLE_TIME_INIT_PARAM);
 		int maxIdleTime = str==null ? MAX_IDLE_TIME_DEFAULT : Integer.parseInt(str);
 
-		sessionManager = new SocketIOSessionManager();
+		str = this.getInitParameter(SESSION_TIMER_INIT_PARAM);
+		if (str == null || SESSION_TIMER_WHEEL.equals(str)) {
+			sessionManager = new SocketIOSessionManager(new HashedWheelTaskScheduler());
+		} else if (SESSION_TIMER_EXECUTOR.equals(str)) {
+			sessionManager = new SocketIOSessionManager(new ExecutorTaskScheduler());
+		} else {
+			throw new ServletException("Unknown " + SESSION_TIMER_INIT_PARAM + ": " + str);
+		}
+		str = this.getInitParameter(OUTBOUND_MEMORY_HIGH_WATER_INIT_PARAM);
+		if (str != null) {
+			long highWater = Long.parseLong(str);
+			str = this.getInitParameter(OUTBOUND_MEMORY_LOW_WATER_INIT_PARAM);
+			long lowWater = str==null ? highWater - highWater/4 : Long.parseLong(str);
+			str = this.getInitParameter(OUTBOUND_MEMORY_REACTION_INIT_PARAM);
+			OutboundMemoryAccountant.Reaction reaction = str==null ?
+					OutboundMemoryAccountant.Reaction.REJECT_SESSIONS : OutboundMemoryAccountant.Reaction.fromString(str);
+			sessionManager.setOutboundMemoryBudget(highWater, lowWater, reaction);
+		}
+		str = this.getInitParameter(BROADCAST_THREADS_INIT_PARAM);
+		int broadcastThreads = str==null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(str);
+		str = this.getInitParameter(BROADCAST_CHUNK_SIZE_INIT_PARAM);
+		int broadcastChunkSize = str==null ? BroadcastExecutor.DEFAULT_CHUNK_SIZE : Integer.parseInt(str);
+		str = this.getInitParameter(BROADCAST_QUEUE_SIZE_INIT_PARAM);
+		int broadcastQueueSize = str==null ? BroadcastExecutor.DEFAULT_QUEUE_SIZE : Integer.parseInt(str);
+		sessionManager.getRoomManager().setBroadcastExecutor(
+				new BroadcastExecutor(broadcastThreads, broadcastChunkSize, broadcastQueueSize));
+		str = this.getInitParameter(NODE_ID_INIT_PARAM);
+		if (str != null) {
+			sessionManager.setNodeId(str);
+		}
+		str = this.getInitParameter(NODE_URLS_INIT_PARAM);
+		if (str != null) {
+			sessionManager.setSessionRouter(new RedirectSessionRouter(RedirectSessionRouter.parseNodeUrls(str)));
+		}
+		str = this.getInitParameter(CLUSTER_BUS_INIT_PARAM);
+		if (str != null) {
+			ClusterBus bus;
+			if (CLUSTER_BUS_LOOPBACK.equals(str)) {
+				bus = new LoopbackClusterBus();
+			} else if (CLUSTER_BUS_TCP.equals(str)) {
+				String address = this.getInitParameter(CLUSTER_ADDRESS_INIT_PARAM);
+				String peers = this.getInitParameter(CLUSTER_PEERS_INIT_PARAM);
+				if (address == null || peers == null) {
+					throw new ServletException(CLUSTER_ADDRESS_INIT_PARAM + " and " + CLUSTER_PEERS_INIT_PARAM +
+							" are required by the " + CLUSTER_BUS_TCP + " cluster bus");
+				}
+				bus = new TcpClusterBus(TcpClusterBus.parseAddress(address), TcpClusterBus.parseAddresses(peers));
+			} else {
+				throw new ServletException("Unknown " + CLUSTER_BUS_INIT_PARAM + ": " + str);
+			}
+			try {
+				sessionManager.setClusterBus(bus);
+			} catch (IOException e) {
+				throw new ServletException("Failed to join the cluster", e);
+			}
+		}
+		str = this.getInitParameter(STATIC_MAX_AGE_INIT_PARAM);
+		int staticMaxAge = str==null ? 0 : Integer.parseInt(str);
+		try {
+			socketIOScript = StaticAsset.load(getClass().getClassLoader(), "com/glines/socketio/socket.io.js",
+					"text/javascript", staticMaxAge);
+		} catch (IOException e) {
+			throw new ServletException("Failed to load socket.io.js", e);
+		}
+		str = this.getInitParameter(FLUSH_THREADS_INIT_PARAM);
+		int flushThreads = str==null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(str);
+		flushScheduler = new FlushScheduler(flushThreads);
 		WebSocketTransport websocketTransport = new WebSocketTransport(bufferSize, maxIdleTime);
 		FlashSocketTransport flashsocketTransport = new FlashSocketTransport(bufferSize, maxIdleTime);
 		HTMLFileTransport htmlFileTransport = new HTMLFileTransport(bufferSize, maxIdleTime);
 		XHRMultipartTransport xhrMultipartTransport = new XHRMultipartTransport(bufferSize, maxIdleTime);
 		XHRPollingTransport xhrPollingTransport = new XHRPollingTransport(bufferSize, maxIdleTime);
 		JSONPPollingTransport jsonpPollingTransport = new JSONPPollingTransport(bufferSize, maxIdleTime);
+		EventSourceTransport eventSourceTransport = new EventSourceTransport(bufferSize, maxIdleTime);
 		transports.put(websocketTransport.getName(), websocketTransport);
 		transports.put(flashsocketTransport.getName(), flashsocketTransport);
 		transports.put(htmlFileTransport.getName(), htmlFileTransport);
 		transports.put(xhrMultipartTransport.getName(), xhrMultipartTransport);
 		transports.put(xhrPollingTransport.getName(), xhrPollingTransport);
 		transports.put(jsonpPollingTransport.getName(), jsonpPollingTransport);
+		transports.put(eventSourceTransport.getName(), eventSourceTransport);
 		
 		for (Transport t: transports.values()) {
+			if (t instanceof AbstractTransport) {
+				((AbstractTransport)t).setFlushScheduler(flushScheduler);
+			}
 			t.init(this.getServletConfig());
 		}
+		transportList = transports.values().toArray(new Transport[transports.size()]);
 	}
 
     @Override
@@ -92,21 +228,26 @@ public abstract class SocketIOServlet extends HttpServlet {
 
     private void serve(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
-    	String path = request.getPathInfo();
-    	if (path == null || path.length() == 0 || "/".equals(path)) {
+    	RequestPath path = RequestPath.of(request);
+    	if (path == null) {
     		response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing SocketIO transport");
     		return;
     	}
-    	if (path.startsWith("/")) path = path.substring(1);
-    	String[] parts = path.split("/");
 
-    	Transport transport = transports.get(parts[0]);
+    	Transport transport = null;
+    	for (Transport t: transportList) {
+    		if (path.isTransport(t.getName())) {
+    			transport = t;
+    			break;
+    		}
+    	}
     	if (transport == null) {
-    		if ("GET".equals(request.getMethod()) && "socket.io.js".equals(parts[0])) {
-				response.setContentType("text/javascript");
-				InputStream is = this.getClass().getClassLoader().getResourceAsStream("com/glines/socketio/socket.io.js");
-				OutputStream os = response.getOutputStream();
-				IO.copy(is, os);
+    		if ("GET".equals(request.getMethod()) && path.isTransport("socket.io.js")) {
+				if (socketIOScript == null) {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				} else {
+					socketIOScript.serve(request, response);
+				}
 				return;
     		} else {
 	    		response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown SocketIO transport");
@@ -114,14 +255,58 @@ public abstract class SocketIOServlet extends HttpServlet {
     		}
     	}
 
-  		transport.handle(request, response, new Transport.InboundFactory() {
+    	OutboundMemoryAccountant accountant = sessionManager.getOutboundMemoryAccountant();
+    	if (accountant != null && !path.hasSessionId() &&
+    			!accountant.acceptSession()) {
+    		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Outbound memory budget exceeded");
+    		return;
+    	}
+
+  		transport.handle(request, response, inboundFactory, sessionManager);
+    }
 
-			@Override
-			public SocketIOInbound getInbound(HttpServletRequest request) {
-				return SocketIOServlet.this.doSocketIOConnect(request);
-			}
-  			
-  		}, sessionManager);
+    /**
+     * @return The server-wide outbound memory accountant, whose getters expose its gauges,
+     * or null if no outboundMemoryHighWater was configured.
+     */
+    public OutboundMemoryAccountant getOutboundMemoryAccountant() {
+    	return sessionManager.getOutboundMemoryAccountant();
+    }
+
+    /**
+     * @return The registry of live sessions, by session id and by slot.
+     */
+    public SessionRegistry getSessionRegistry() {
+    	return sessionManager.getSessionRegistry();
+    }
+
+    /**
+     * Set what to do with requests for sessions of other nodes, overriding nodeUrls.
+     */
+    public void setSessionRouter(SessionRouter router) {
+    	sessionManager.setSessionRouter(router);
+    }
+
+    /**
+     * @return The rooms that connections can join and be broadcast to.
+     */
+    public RoomManager getRoomManager() {
+    	return sessionManager.getRoomManager();
+    }
+
+    /**
+     * @return The topics that connections can subscribe and publish to.
+     */
+    public TopicManager getTopicManager() {
+    	return sessionManager.getTopicManager();
+    }
+
+    /**
+     * @return The flush stage shared by this servlet's transports, whose getters expose the
+     * batch sizes it achieves.
+     */
+    public FlushScheduler getFlushScheduler() {
+    	return flushScheduler;
     }
 
     @Override
@@ -129,6 +314,9 @@ public abstract class SocketIOServlet extends HttpServlet {
     	for (Transport t: transports.values()) {
     		t.destroy();
     	}
+    	flushScheduler.shutdown();
+    	sessionManager.getRoomManager().getBroadcastExecutor().shutdown();
+    	sessionManager.destroy();
     	super.destroy();
     }
 
@@ -23,6 +23,7 @@
 package com.glines.socketio.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -37,6 +38,20 @@ public interface SocketIOSession {
 		SocketIOSession getSession(String sessionId);
 	}
 
+	/**
+	 * Optional extension of {@link Factory} for factories whose sessions may live on
+	 * other nodes. Transports check for it, so plain factories keep working.
+	 */
+	interface RoutingFactory extends Factory {
+		/**
+		 * Called for a request naming a session that {@link #getSession(String)} doesn't know,
+		 * which may live on another node.
+		 * @return true if the request was answered, false if it should be rejected.
+		 */
+		boolean routeRequest(String sessionId, HttpServletRequest request, HttpServletResponse response)
+				throws IOException;
+	}
+
 	interface SessionTransportHandler extends SocketIOOutbound {
 		void handle(HttpServletRequest request, HttpServletResponse response, SocketIOSession session) throws IOException;
 		void sendMessage(SocketIOFrame message) throws SocketIOException;
@@ -55,11 +70,35 @@ public interface SocketIOSession {
 		 */
 		boolean cancel();
 	}
-	
+
+	/**
+	 * Source of the {@link SessionTask}s handed out by {@link SocketIOSession#scheduleTask(Runnable, long)}.
+	 * Implementations must tolerate tasks being scheduled and canceled from any thread.
+	 */
+	interface SessionTaskScheduler {
+		/**
+		 * @param task The task to execute after specified delay.
+		 * @param delay Delay in milliseconds.
+		 */
+		SessionTask schedule(Runnable task, long delay);
+
+		/**
+		 * Stop executing tasks and release any threads held by this scheduler.
+		 * Tasks that have not yet run are discarded.
+		 */
+		void shutdown();
+	}
+
 	String generateRandomString(int length);
 	
 	String getSessionId();
 
+	/**
+	 * @return This session's slot in its {@link SessionRegistry}, which is unique among the
+	 * live sessions and may be reused after this session has shut down.
+	 */
+	int getSlot();
+
 	ConnectionState getConnectionState();
 	
 	SocketIOInbound getInbound();
@@ -94,6 +133,12 @@ public interface SocketIOSession {
 	 * @return
 	 */
 	SessionTask scheduleTask(Runnable task, long delay);
+
+	/**
+	 * @return The accountant that buffered outbound data must be reported to, or null if
+	 * there is no server-wide budget.
+	 */
+	OutboundMemoryAccountant getOutboundMemoryAccountant();
 	
 	/**
 	 * @param handler The handler or null if the connection failed.
@@ -107,6 +152,21 @@ public interface SocketIOSession {
 	 */
 	void onMessage(String message);
 	
+	/**
+	 * Pass a binary message through to contained SocketIOInbound, if it implements
+	 * {@link SocketIOInbound.BinaryListener}.
+	 * @param messageType
+	 * @param data
+	 */
+	void onBinaryMessage(int messageType, ByteBuffer data);
+
+	/**
+	 * Pass a writability change through to contained SocketIOInbound, if it implements
+	 * {@link SocketIOInbound.WritabilityListener}.
+	 * @param writable
+	 */
+	void onWritabilityChanged(boolean writable);
+
 	/**
 	 * Pass disconnect through to contained SocketIOInbound and update any internal state.
 	 * @param reason
@@ -27,20 +27,127 @@ import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
 import org.eclipse.jetty.util.log.Log;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Random;
-import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class SocketIOSessionManager implements SocketIOSession.Factory {
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class SocketIOSessionManager implements SocketIOSession.RoutingFactory {
 	private static final char[] BASE64_ALPHABET =
 	      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
 	      .toCharArray();
 	private static final int SESSION_ID_LENGTH = 20;
 
 	private static Random random = new SecureRandom();
-	private ConcurrentMap<String, SocketIOSession> socketIOSessions = new ConcurrentHashMap<String, SocketIOSession>();
-	private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+	private final SessionRegistry registry = new SessionRegistry();
+	private final RoomManager rooms = new RoomManager(registry);
+	private final TopicManager topics = new TopicManager(registry);
+	private ClusterBus clusterBus = null;
+	private final long epoch = System.currentTimeMillis();
+	private volatile String nodeId = null;
+	private volatile SessionRouter sessionRouter = null;
+	private final SocketIOSession.SessionTaskScheduler scheduler;
+	private volatile OutboundMemoryAccountant memoryAccountant = null;
+
+	public SocketIOSessionManager() {
+		this(new HashedWheelTaskScheduler());
+	}
+
+	public SocketIOSessionManager(SocketIOSession.SessionTaskScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Limit the total outbound data buffered by this manager's sessions. Only sessions
+	 * created afterwards are accounted for.
+	 * @return The accountant, whose getters expose the current usage.
+	 */
+	public OutboundMemoryAccountant setOutboundMemoryBudget(long highWaterMark, long lowWaterMark,
+			OutboundMemoryAccountant.Reaction reaction) {
+		OutboundMemoryAccountant previous = memoryAccountant;
+		memoryAccountant = new OutboundMemoryAccountant(highWaterMark, lowWaterMark, reaction, scheduler);
+		if (previous != null) {
+			previous.shutdown();
+		}
+		return memoryAccountant;
+	}
+
+	/**
+	 * @return The accountant, or null if there is no outbound memory budget.
+	 */
+	public OutboundMemoryAccountant getOutboundMemoryAccountant() {
+		return memoryAccountant;
+	}
+
+	/**
+	 * @return The registry of this manager's live sessions.
+	 */
+	public SessionRegistry getSessionRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return The rooms this manager's sessions can join.
+	 */
+	public RoomManager getRoomManager() {
+		return rooms;
+	}
+
+	/**
+	 * @return The topics this manager's sessions can subscribe to.
+	 */
+	public TopicManager getTopicManager() {
+		return topics;
+	}
+
+	/**
+	 * Name this node, so that the ids of sessions created from now on say where they live.
+	 * @see SessionId
+	 * @throws IllegalArgumentException if nodeId is not {@link SessionId#isValidNodeId(String) valid}.
+	 */
+	public void setNodeId(String nodeId) {
+		if (!SessionId.isValidNodeId(nodeId)) {
+			throw new IllegalArgumentException("Invalid node id: " + nodeId);
+		}
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * @return This node's id, or null if it has none.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Set what to do with requests for sessions of other nodes. Without a router they are
+	 * rejected like requests for unknown sessions.
+	 */
+	public void setSessionRouter(SessionRouter router) {
+		this.sessionRouter = router;
+	}
+
+	/**
+	 * Join a cluster, so that room broadcasts and topic publishes reach the sessions on
+	 * every node. Can only be called once.
+	 */
+	public synchronized void setClusterBus(ClusterBus bus) throws IOException {
+		if (clusterBus != null) {
+			throw new IllegalStateException("Already joined a cluster");
+		}
+		// Restarts get a new epoch, so peers don't mistake the new run's messages for duplicates.
+		String id = nodeId;
+		String origin = (id == null ? generateRandomString(8) : id) + SessionId.SEPARATOR + Long.toString(epoch, 36);
+		ClusterForwarder forwarder = new ClusterForwarder(origin, bus, rooms, topics);
+		bus.start(forwarder);
+		clusterBus = bus;
+		rooms.setForwarder(forwarder);
+		topics.setForwarder(forwarder);
+	}
 
 	private static String generateRandomString(int length) {
 	    StringBuilder result = new StringBuilder(length);
@@ -54,6 +161,7 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 
 	private class SessionImpl implements SocketIOSession {
 		private final String sessionId;
+		private final int slot;
 		private SocketIOInbound inbound;
 		private SessionTransportHandler handler = null;
 		private ConnectionState state = ConnectionState.CONNECTING;
@@ -65,8 +173,9 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 		private AtomicLong messageId = new AtomicLong(0);
 		private String closeId = null;
 
-		SessionImpl(String sessionId, SocketIOInbound inbound) {
+		SessionImpl(String sessionId, int slot, SocketIOInbound inbound) {
 			this.sessionId = sessionId;
+			this.slot = slot;
 			this.inbound = inbound;
 		}
 
@@ -80,6 +189,11 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 			return sessionId;
 		}
 
+		@Override
+		public int getSlot() {
+			return slot;
+		}
+
 		@Override
 		public ConnectionState getConnectionState() {
 			return state;
@@ -262,15 +376,14 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 			}
 		}
 
+		@Override
+		public OutboundMemoryAccountant getOutboundMemoryAccountant() {
+			return memoryAccountant;
+		}
+
 		@Override
 		public SessionTask scheduleTask(Runnable task, long delay) {
-			final Future<?> future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
-			return new SessionTask() {
-				@Override
-				public boolean cancel() {
-					return future.cancel(false);
-				}
-			};
+			return scheduler.schedule(task, delay);
 		}
 		
 		@Override
@@ -278,7 +391,7 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 			if (handler == null) {
 				state = ConnectionState.CLOSED;
 				inbound = null;
-				socketIOSessions.remove(sessionId);
+				release();
 			} else if (this.handler == null) {
 				this.handler = handler;
 				try {
@@ -305,6 +418,30 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 			}
 		}
 
+		@Override
+		public void onBinaryMessage(int messageType, ByteBuffer data) {
+			if (inbound instanceof SocketIOInbound.BinaryListener) {
+				try {
+					((SocketIOInbound.BinaryListener)inbound).onMessage(messageType, data);
+				} catch (Throwable e) {
+					Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onMessage()", e);
+				}
+			} else if (inbound != null) {
+				Log.debug("Session["+sessionId+"]: dropped binary message, inbound is not a BinaryListener");
+			}
+		}
+
+		@Override
+		public void onWritabilityChanged(boolean writable) {
+			if (inbound instanceof SocketIOInbound.WritabilityListener) {
+				try {
+					((SocketIOInbound.WritabilityListener)inbound).onWritabilityChanged(writable);
+				} catch (Throwable e) {
+					Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onWritabilityChanged()", e);
+				}
+			}
+		}
+
 		@Override
 		public void onDisconnect(DisconnectReason reason) {
 			Log.debug("Session["+sessionId+"]: onDisconnect: " + reason);
@@ -321,6 +458,17 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 			}
 		}
 		
+		/**
+		 * Leave all rooms and topics, then free the session's id and slot.
+		 */
+		private void release() {
+			rooms.leaveAll(this);
+			topics.unsubscribeAll(this);
+			registry.remove(this);
+			rooms.forget(this);
+			topics.forget(this);
+		}
+
 		@Override
 		public void onShutdown() {
 			Log.debug("Session["+sessionId+"]: onShutdown");
@@ -335,23 +483,59 @@ public class SocketIOSessionManager implements SocketIOSession.Factory {
 					onDisconnect(DisconnectReason.ERROR);
 				}
 			}
-			socketIOSessions.remove(sessionId);
+			release();
 		}
 	}
 	
 	private String generateSessionId() {
-		return generateRandomString(SESSION_ID_LENGTH);
+		String id = nodeId;
+		if (id == null) {
+			return generateRandomString(SESSION_ID_LENGTH);
+		}
+		return SessionId.format(id, epoch, generateRandomString(SESSION_ID_LENGTH));
 	}
 
 	@Override
 	public SocketIOSession createSession(SocketIOInbound inbound) {
-		SessionImpl impl = new SessionImpl(generateSessionId(), inbound);
-		socketIOSessions.put(impl.getSessionId(), impl);
+		SessionImpl impl = new SessionImpl(generateSessionId(), registry.allocateSlot(), inbound);
+		registry.add(impl);
 		return impl;
 	}
 
 	@Override
 	public SocketIOSession getSession(String sessionId) {
-		return socketIOSessions.get(sessionId);
+		return registry.get(sessionId);
+	}
+
+	@Override
+	public boolean routeRequest(String sessionId, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		SessionRouter router = sessionRouter;
+		SessionId id = router == null ? null : SessionId.parse(sessionId);
+		if (id == null || id.getNodeId().equals(nodeId)) {
+			// Unroutable, or one of ours that is gone.
+			return false;
+		}
+		return router.route(request, response, id);
+	}
+
+	/**
+	 * Leave the cluster, if any, and stop the session timers. Pending heartbeat and timeout
+	 * tasks will no longer fire.
+	 */
+	public void destroy() {
+		synchronized (this) {
+			if (clusterBus != null) {
+				rooms.setForwarder(null);
+				topics.setForwarder(null);
+				clusterBus.stop();
+				clusterBus = null;
+			}
+		}
+		OutboundMemoryAccountant accountant = memoryAccountant;
+		if (accountant != null) {
+			accountant.shutdown();
+		}
+		scheduler.shutdown();
 	}
 }
@@ -0,0 +1,230 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.IO;
+
+/**
+ * A classpath resource, such as socket.io.js, held in memory together with its gzip and
+ * deflate encodings and a strong ETag for each.
+ * <p>
+ * Everything is computed when the asset is loaded, so serving it never touches the class
+ * loader, compresses or hashes anything. Conditional GETs are answered with 304 and clients
+ * get the smallest encoding they accept.
+ */
+public final class StaticAsset {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final class Variant {
+		final String encoding;
+		final byte[] content;
+		final String etag;
+
+		Variant(String encoding, byte[] content, String etag) {
+			this.encoding = encoding;
+			this.content = content;
+			this.etag = etag;
+		}
+	}
+
+	private final String contentType;
+	private final String cacheControl;
+	private final Variant identity;
+	// Null when compressing doesn't make the content smaller.
+	private final Variant gzip;
+	private final Variant deflate;
+
+	/**
+	 * @param resource The resource name, as for {@link ClassLoader#getResource(String)}.
+	 * @param maxAge Seconds clients may use the asset without revalidating it.
+	 * @return The asset, or null if there is no such resource.
+	 */
+	public static StaticAsset load(ClassLoader loader, String resource, String contentType, int maxAge)
+			throws IOException {
+		InputStream is = loader.getResourceAsStream(resource);
+		if (is == null) {
+			return null;
+		}
+		byte[] content;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IO.copy(is, out);
+			content = out.toByteArray();
+		} finally {
+			is.close();
+		}
+		return new StaticAsset(content, contentType, maxAge);
+	}
+
+	public StaticAsset(byte[] content, String contentType, int maxAge) throws IOException {
+		this.contentType = contentType;
+		this.cacheControl = "public, max-age=" + maxAge;
+		String tag = digest(content);
+		this.identity = new Variant(null, content.clone(), "\"" + tag + "\"");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+		GZIPOutputStream gz = new GZIPOutputStream(out) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		gz.write(content);
+		gz.close();
+		this.gzip = out.size() < content.length ? new Variant("gzip", out.toByteArray(), "\"" + tag + "-gz\"") : null;
+
+		out = new ByteArrayOutputStream(content.length / 2);
+		DeflaterOutputStream df = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+		df.write(content);
+		df.close();
+		this.deflate = out.size() < content.length ? new Variant("deflate", out.toByteArray(), "\"" + tag + "-df\"") : null;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return The uncompressed size in bytes.
+	 */
+	public int getLength() {
+		return identity.content.length;
+	}
+
+	/**
+	 * Answer a GET or HEAD request for this asset.
+	 */
+	public void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Variant variant = select(request.getHeader("Accept-Encoding"));
+		response.setHeader("ETag", variant.etag);
+		response.setHeader("Cache-Control", cacheControl);
+		if (gzip != null || deflate != null) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		if (matches(request.getHeader("If-None-Match"), variant.etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setContentType(contentType);
+		if (variant.encoding != null) {
+			response.setHeader("Content-Encoding", variant.encoding);
+		}
+		response.setContentLength(variant.content.length);
+		if (!"HEAD".equals(request.getMethod())) {
+			response.getOutputStream().write(variant.content);
+		}
+	}
+
+	private Variant select(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return identity;
+		}
+		if (gzip != null && accepts(acceptEncoding, "gzip")) {
+			return gzip;
+		}
+		if (deflate != null && accepts(acceptEncoding, "deflate")) {
+			return deflate;
+		}
+		return identity;
+	}
+
+	/**
+	 * @return true if the Accept-Encoding header lists coding, or *, without q=0.
+	 */
+	private static boolean accepts(String header, String coding) {
+		int len = header.length();
+		int start = 0;
+		while (start < len) {
+			int end = header.indexOf(',', start);
+			if (end < 0) {
+				end = len;
+			}
+			int semi = header.indexOf(';', start);
+			int nameEnd = semi < 0 || semi > end ? end : semi;
+			String name = header.substring(start, nameEnd).trim();
+			if (name.equalsIgnoreCase(coding) || "*".equals(name)) {
+				return nameEnd == end || !isZeroQuality(header.substring(nameEnd + 1, end));
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	private static boolean isZeroQuality(String params) {
+		int q = params.indexOf("q=");
+		if (q < 0) {
+			return false;
+		}
+		try {
+			return Float.parseFloat(params.substring(q + 2).trim()) == 0f;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the If-None-Match header lists etag, using the weak comparison that
+	 *         RFC 2616 requires for If-None-Match.
+	 */
+	private static boolean matches(String header, String etag) {
+		if (header == null) {
+			return false;
+		}
+		for (String candidate: header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag) || "*".equals(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String digest(byte[] content) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("MD5").digest(content);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		char[] chars = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(chars);
+	}
+}
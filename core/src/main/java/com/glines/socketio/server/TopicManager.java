@@ -0,0 +1,406 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Publish/subscribe over hierarchical topics.
+ * <p>
+ * Topics are '.' separated segments, such as "quotes.nyse.ibm". A subscription pattern may
+ * use "*" as a segment to match any one segment, and end with "#" to match any number of
+ * remaining segments, including none: "quotes.*.ibm" and "quotes.#" both match
+ * "quotes.nyse.ibm", and "quotes.#" also matches "quotes". Published topics are literal.
+ * <p>
+ * Patterns are kept in a trie with one node per segment. Each node holds the
+ * {@link SessionRegistry} slots of its subscribers in a {@link SlotSet}, so a subscription
+ * costs a few bytes, and publishing walks one path of the trie per matching wildcard
+ * without locking. Subscribing only locks the nodes along its pattern, so churn on
+ * unrelated topics doesn't contend. A subscriber matched by several patterns gets the
+ * message once.
+ * <p>
+ * Sessions lose their subscriptions when they shut down.
+ * <p>
+ * With a {@link ClusterBus}, publishes also reach the subscribers on the other nodes. Counts
+ * only cover the subscribers on this node.
+ */
+public class TopicManager {
+	public static final char SEPARATOR = '.';
+	public static final String ANY_SEGMENT = "*";
+	public static final String ANY_SEGMENTS = "#";
+
+	private static final SocketIOOutbound.SendCallback PUBLISH_CALLBACK = new SocketIOOutbound.SendCallback() {
+		@Override
+		public void onSent() {
+		}
+
+		@Override
+		public void onFailed(Throwable cause) {
+			Log.debug("Publish not delivered: " + cause);
+		}
+	};
+
+	/**
+	 * A node's children and subscribers are changed under its lock and read without it. A
+	 * node is detached from its parent holding the parent's lock and then its own, and marked
+	 * removed so that subscribers don't attach to it afterwards.
+	 */
+	private static final class Node {
+		final Node parent;
+		final String segment;
+		volatile ConcurrentMap<String, Node> children = null;
+		final SlotSet subscribers = new SlotSet();
+		boolean removed = false;
+
+		Node(Node parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+
+		Node child(String segment) {
+			ConcurrentMap<String, Node> c = children;
+			return c == null ? null : c.get(segment);
+		}
+
+		boolean isUnused() {
+			ConcurrentMap<String, Node> c = children;
+			return subscribers.isEmpty() && (c == null || c.isEmpty());
+		}
+	}
+
+	/**
+	 * The nodes a session subscribes at. The lock is taken before any node's lock.
+	 */
+	private static final class Subscriptions {
+		final List<Node> nodes = new ArrayList<Node>(4);
+		boolean closed = false;
+	}
+
+	private final SessionRegistry registry;
+	private volatile ClusterForwarder forwarder = null;
+	private final Node root = new Node(null, null);
+	private final ConcurrentMap<SocketIOSession, Subscriptions> subscriptions =
+		new ConcurrentHashMap<SocketIOSession, Subscriptions>();
+
+	public TopicManager(SessionRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * @return true if the session was subscribed, false if it already was or is not live.
+	 * @throws IllegalArgumentException if "#" is used other than as the last segment.
+	 */
+	public boolean subscribe(String pattern, SocketIOOutbound subscriber) {
+		validate(pattern);
+		SocketIOSession session = registry.get(subscriber.getSessionId());
+		if (session == null) {
+			return false;
+		}
+		Subscriptions subs = subscriptions.get(session);
+		if (subs == null) {
+			subs = new Subscriptions();
+			Subscriptions existing = subscriptions.putIfAbsent(session, subs);
+			if (existing != null) {
+				subs = existing;
+			}
+		}
+		synchronized (subs) {
+			// Checked under the lock, so that the session can't shut down and give up its
+			// slot while it is being subscribed.
+			if (subs.closed || registry.get(session.getSessionId()) != session) {
+				if (!subs.closed) {
+					// The session was released, and possibly forgotten, after it was looked
+					// up, so nothing else will remove the entry this call inserted.
+					subscriptions.remove(session, subs);
+				}
+				return false;
+			}
+			Node node = attach(pattern, session.getSlot());
+			if (node == null) {
+				return false;
+			}
+			subs.nodes.add(node);
+		}
+		return true;
+	}
+
+	/**
+	 * Add a slot to the node of a pattern, creating the path to it as needed. Starts over
+	 * if a node on the path is pruned meanwhile.
+	 * @return The node, or null if the slot was already there.
+	 */
+	private Node attach(String pattern, int slot) {
+		for (;;) {
+			Node node = root;
+			int start = 0;
+			for (;;) {
+				int end = segmentEnd(pattern, start);
+				String segment = pattern.substring(start, end);
+				Node child = node.child(segment);
+				if (child == null) {
+					synchronized (node) {
+						if (node.removed) {
+							break;
+						}
+						if (node.children == null) {
+							node.children = new ConcurrentHashMap<String, Node>(2, 0.75f, 1);
+						}
+						child = node.children.get(segment);
+						if (child == null) {
+							child = new Node(node, segment);
+							node.children.put(segment, child);
+						}
+					}
+				}
+				node = child;
+				if (end == pattern.length()) {
+					synchronized (node) {
+						if (node.removed) {
+							break;
+						}
+						return node.subscribers.add(slot) ? node : null;
+					}
+				}
+				start = end + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the session was subscribed to exactly this pattern.
+	 */
+	public boolean unsubscribe(String pattern, SocketIOOutbound subscriber) {
+		SocketIOSession session = registry.get(subscriber.getSessionId());
+		Subscriptions subs = session == null ? null : subscriptions.get(session);
+		if (subs == null) {
+			return false;
+		}
+		synchronized (subs) {
+			Node node = root;
+			int start = 0;
+			for (;;) {
+				int end = segmentEnd(pattern, start);
+				node = node.child(pattern.substring(start, end));
+				if (node == null) {
+					return false;
+				}
+				if (end == pattern.length()) {
+					break;
+				}
+				start = end + 1;
+			}
+			synchronized (node) {
+				// A removed node has no subscribers, so this also fails if it was pruned.
+				if (!node.subscribers.remove(session.getSlot())) {
+					return false;
+				}
+			}
+			subs.nodes.remove(node);
+			prune(node);
+		}
+		return true;
+	}
+
+	/**
+	 * Send a message to every session subscribed to a pattern that matches the topic.
+	 * @return The number of sessions the message was handed to.
+	 */
+	public int publish(String topic, SocketIOMessage message) {
+		ClusterForwarder f = forwarder;
+		if (f != null) {
+			f.forward(ClusterMessage.Kind.TOPIC, topic, message);
+		}
+		return deliver(topic, message);
+	}
+
+	void setForwarder(ClusterForwarder forwarder) {
+		this.forwarder = forwarder;
+	}
+
+	/**
+	 * Deliver a message, published here or received from another node, to this node's subscribers.
+	 */
+	int deliver(String topic, final SocketIOMessage message) {
+		List<Node> matches = new ArrayList<Node>(4);
+		match(root, topic, 0, matches);
+		if (matches.isEmpty()) {
+			return 0;
+		}
+		final int[] count = new int[1];
+		if (matches.size() == 1) {
+			matches.get(0).subscribers.forEach(new SlotSet.Visitor() {
+				@Override
+				public void visit(int slot) {
+					if (send(slot, message)) {
+						count[0]++;
+					}
+				}
+			});
+		} else {
+			final BitSet seen = new BitSet();
+			for (Node node: matches) {
+				node.subscribers.forEach(new SlotSet.Visitor() {
+					@Override
+					public void visit(int slot) {
+						if (!seen.get(slot)) {
+							seen.set(slot);
+							if (send(slot, message)) {
+								count[0]++;
+							}
+						}
+					}
+				});
+			}
+		}
+		return count[0];
+	}
+
+	/**
+	 * Drop all of a session's subscriptions and stop it subscribing again. Must be called
+	 * before the session is removed from the registry, so that its slot is not reused while
+	 * the trie still contains it.
+	 */
+	void unsubscribeAll(SocketIOSession session) {
+		Subscriptions subs = subscriptions.get(session);
+		if (subs == null) {
+			subs = new Subscriptions();
+			Subscriptions existing = subscriptions.putIfAbsent(session, subs);
+			if (existing != null) {
+				subs = existing;
+			}
+		}
+		synchronized (subs) {
+			subs.closed = true;
+			for (Node node: subs.nodes) {
+				synchronized (node) {
+					node.subscribers.remove(session.getSlot());
+				}
+				prune(node);
+			}
+			subs.nodes.clear();
+		}
+	}
+
+	/**
+	 * Drop what is known about a session. Must be called after it is removed from the registry.
+	 */
+	void forget(SocketIOSession session) {
+		subscriptions.remove(session);
+	}
+
+	/**
+	 * @return The number of nodes in the trie, not counting the root.
+	 */
+	int getNodeCount() {
+		return countNodes(root);
+	}
+
+	private static int countNodes(Node node) {
+		ConcurrentMap<String, Node> c = node.children;
+		if (c == null) {
+			return 0;
+		}
+		int count = c.size();
+		for (Node child: c.values()) {
+			count += countNodes(child);
+		}
+		return count;
+	}
+
+	private boolean send(int slot, SocketIOMessage message) {
+		SocketIOSession session = registry.get(slot);
+		SocketIOSession.SessionTransportHandler handler = session == null ? null : session.getTransportHandler();
+		if (handler == null) {
+			return false;
+		}
+		handler.sendMessage(message, PUBLISH_CALLBACK);
+		return true;
+	}
+
+	/**
+	 * Collect the nodes with subscribers whose pattern matches the topic from start on.
+	 * @param start Start of the next segment, or past the end of the topic if there is none.
+	 */
+	private static void match(Node node, String topic, int start, List<Node> matches) {
+		Node any = node.child(ANY_SEGMENTS);
+		if (any != null && !any.subscribers.isEmpty()) {
+			matches.add(any);
+		}
+		if (start > topic.length()) {
+			if (node.parent != null && !node.subscribers.isEmpty()) {
+				matches.add(node);
+			}
+			return;
+		}
+		if (node.children == null) {
+			return;
+		}
+		int end = segmentEnd(topic, start);
+		Node child = node.child(topic.substring(start, end));
+		if (child != null) {
+			match(child, topic, end + 1, matches);
+		}
+		child = node.child(ANY_SEGMENT);
+		if (child != null) {
+			match(child, topic, end + 1, matches);
+		}
+	}
+
+	/**
+	 * Remove nodes that no longer lead to a subscriber, from node up. Must not hold any
+	 * node's lock.
+	 */
+	private void prune(Node node) {
+		while (node != root) {
+			Node parent = node.parent;
+			synchronized (parent) {
+				synchronized (node) {
+					if (node.removed || !node.isUnused()) {
+						return;
+					}
+					node.removed = true;
+					parent.children.remove(node.segment, node);
+				}
+			}
+			node = parent;
+		}
+	}
+
+	private static int segmentEnd(String s, int start) {
+		int end = s.indexOf(SEPARATOR, start);
+		return end < 0 ? s.length() : end;
+	}
+
+	private static void validate(String pattern) {
+		int hash = pattern.indexOf(SEPARATOR + ANY_SEGMENTS + SEPARATOR);
+		if (hash >= 0 || pattern.startsWith(ANY_SEGMENTS + SEPARATOR)) {
+			throw new IllegalArgumentException("\"" + ANY_SEGMENTS + "\" must be the last segment: " + pattern);
+		}
+	}
+}
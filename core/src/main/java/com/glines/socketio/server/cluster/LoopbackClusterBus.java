@@ -0,0 +1,130 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.log.Log;
+
+import com.glines.socketio.server.ClusterBus;
+import com.glines.socketio.server.ClusterMessage;
+
+/**
+ * {@link ClusterBus} between nodes in the same JVM, such as several servlets or Jetty servers
+ * started by one test.
+ * <p>
+ * The buses that share a {@link Hub} form a cluster. A message is put on the inbox of every
+ * other bus on the hub, and each bus delivers its inbox from its own thread, in batches.
+ */
+public class LoopbackClusterBus implements ClusterBus, Runnable {
+	private static final int BATCH_SIZE = 256;
+	private static final Hub DEFAULT_HUB = new Hub();
+	private static final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * A cluster of loopback buses.
+	 */
+	public static final class Hub {
+		private final List<LoopbackClusterBus> members = new CopyOnWriteArrayList<LoopbackClusterBus>();
+	}
+
+	/**
+	 * @return The hub used by buses created without one.
+	 */
+	public static Hub getDefaultHub() {
+		return DEFAULT_HUB;
+	}
+
+	private final Hub hub;
+	private final BlockingQueue<ClusterMessage> inbox = new LinkedBlockingQueue<ClusterMessage>();
+	private volatile Listener listener;
+	private volatile boolean running = false;
+	private Thread thread;
+
+	public LoopbackClusterBus() {
+		this(DEFAULT_HUB);
+	}
+
+	public LoopbackClusterBus(Hub hub) {
+		this.hub = hub;
+	}
+
+	@Override
+	public synchronized void start(Listener listener) {
+		if (running) {
+			throw new IllegalStateException("Already started");
+		}
+		this.listener = listener;
+		running = true;
+		thread = new Thread(this, "SocketIO-ClusterLoopback-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+		hub.members.add(this);
+	}
+
+	@Override
+	public void send(ClusterMessage message) {
+		for (LoopbackClusterBus member: hub.members) {
+			if (member != this) {
+				member.inbox.offer(message);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		hub.members.remove(this);
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		inbox.clear();
+	}
+
+	@Override
+	public void run() {
+		List<ClusterMessage> batch = new ArrayList<ClusterMessage>(BATCH_SIZE);
+		while (running) {
+			try {
+				batch.add(inbox.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			inbox.drainTo(batch, BATCH_SIZE - 1);
+			for (ClusterMessage message: batch) {
+				try {
+					listener.onMessage(message);
+				} catch (RuntimeException e) {
+					Log.warn("Failed to deliver cluster message", e);
+				}
+			}
+			batch.clear();
+		}
+	}
+}
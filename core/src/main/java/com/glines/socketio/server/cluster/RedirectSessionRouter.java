@@ -0,0 +1,90 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.cluster;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.glines.socketio.server.SessionId;
+import com.glines.socketio.server.SessionRouter;
+
+/**
+ * {@link SessionRouter} that answers requests for another node's sessions with a 307
+ * Temporary Redirect to the same path and query on that node. Unlike a 302, a 307 makes
+ * clients repeat POSTs with their body.
+ * <p>
+ * Nodes are reached through base URLs such as "http://node1.example.com:8080". Clients
+ * must be allowed to follow redirects to them, which for XHR means the same origin or CORS.
+ */
+public class RedirectSessionRouter implements SessionRouter {
+	private final Map<String, String> nodeUrls;
+
+	/**
+	 * @param nodeUrls Base URL of each node, by node id.
+	 */
+	public RedirectSessionRouter(Map<String, String> nodeUrls) {
+		this.nodeUrls = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry: nodeUrls.entrySet()) {
+			String url = entry.getValue();
+			this.nodeUrls.put(entry.getKey(), url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+		}
+	}
+
+	/**
+	 * @param nodeUrls Comma separated "nodeId=baseUrl" list.
+	 */
+	public static Map<String, String> parseNodeUrls(String nodeUrls) {
+		Map<String, String> map = new HashMap<String, String>();
+		for (String entry: nodeUrls.split(",")) {
+			int eq = entry.indexOf('=');
+			if (eq < 0) {
+				if (entry.trim().length() > 0) {
+					throw new IllegalArgumentException("Expected nodeId=baseUrl, got " + entry);
+				}
+				continue;
+			}
+			map.put(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim());
+		}
+		return map;
+	}
+
+	@Override
+	public boolean route(HttpServletRequest request, HttpServletResponse response, SessionId sessionId)
+			throws IOException {
+		String base = nodeUrls.get(sessionId.getNodeId());
+		if (base == null) {
+			return false;
+		}
+		StringBuilder location = new StringBuilder(base).append(request.getRequestURI());
+		if (request.getQueryString() != null) {
+			location.append('?').append(request.getQueryString());
+		}
+		response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+		response.setHeader("Location", location.toString());
+		return true;
+	}
+}
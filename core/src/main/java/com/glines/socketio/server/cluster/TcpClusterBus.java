@@ -0,0 +1,422 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.jetty.util.log.Log;
+
+import com.glines.socketio.server.ClusterBus;
+import com.glines.socketio.server.ClusterMessage;
+
+/**
+ * {@link ClusterBus} over a full mesh of TCP connections, run by a single non-blocking
+ * selector thread.
+ * <p>
+ * Every node listens on its own address and connects to each peer in a fixed list; a node
+ * sends over the connections it opened and receives over the ones it accepted. Messages for
+ * a peer are encoded once and appended to that peer's pending buffer, and the selector
+ * thread writes whatever has accumulated with a single write, so a burst of messages costs
+ * a few large writes rather than one per message.
+ * <p>
+ * Delivery is best effort. While a peer is unreachable up to maxPending bytes are kept for
+ * it, and further messages are dropped. Messages being written when a connection fails are
+ * lost, and the connection is retried every {@link #RECONNECT_DELAY} milliseconds.
+ */
+public class TcpClusterBus implements ClusterBus, Runnable {
+	public static final int DEFAULT_MAX_PENDING = 8*1024*1024;
+	public static final long RECONNECT_DELAY = 1000;
+	private static final int READ_BUFFER_SIZE = 64*1024;
+
+	private static final class Peer {
+		final InetSocketAddress address;
+		// Only used by the selector thread.
+		SocketChannel channel = null;
+		SelectionKey key = null;
+		boolean connected = false;
+		long reconnectAt = 0;
+		ByteBuffer writing = null;
+		// Guarded by this.
+		ByteBuffer pending = ByteBuffer.allocate(16*1024);
+		boolean scheduled = false;
+		long dropped = 0;
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	private static final class Inbound {
+		final SocketChannel channel;
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		Inbound(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * @param address "host:port"
+	 */
+	public static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Expected host:port, got " + address);
+		}
+		return new InetSocketAddress(address.substring(0, colon).trim(),
+				Integer.parseInt(address.substring(colon + 1).trim()));
+	}
+
+	/**
+	 * @param addresses Comma separated "host:port" list.
+	 */
+	public static List<InetSocketAddress> parseAddresses(String addresses) {
+		List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+		for (String address: addresses.split(",")) {
+			if (address.trim().length() > 0) {
+				list.add(parseAddress(address));
+			}
+		}
+		return list;
+	}
+
+	private final InetSocketAddress address;
+	private final Peer[] peers;
+	private final int maxPending;
+	// Peers with pending data the selector thread hasn't seen yet.
+	private final Queue<Peer> scheduled = new ConcurrentLinkedQueue<Peer>();
+	private volatile Listener listener;
+	private volatile Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	public TcpClusterBus(InetSocketAddress address, List<InetSocketAddress> peers) {
+		this(address, peers, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * @param address The address to listen on.
+	 * @param peers The other nodes' addresses. The node's own address is ignored if listed.
+	 * @param maxPending Most bytes kept for a peer that can't keep up or can't be reached.
+	 */
+	public TcpClusterBus(InetSocketAddress address, List<InetSocketAddress> peers, int maxPending) {
+		this.address = address;
+		this.maxPending = maxPending;
+		List<Peer> list = new ArrayList<Peer>();
+		for (InetSocketAddress peer: peers) {
+			if (!peer.equals(address)) {
+				list.add(new Peer(peer));
+			}
+		}
+		this.peers = list.toArray(new Peer[list.size()]);
+	}
+
+	@Override
+	public synchronized void start(Listener listener) throws IOException {
+		if (running) {
+			throw new IllegalStateException("Already started");
+		}
+		this.listener = listener;
+		selector = Selector.open();
+		try {
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			selector.close();
+			if (server != null) {
+				server.close();
+			}
+			throw e;
+		}
+		running = true;
+		thread = new Thread(this, "SocketIO-ClusterBus");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void send(ClusterMessage message) {
+		byte[] bytes = message.encode();
+		boolean wakeup = false;
+		for (Peer peer: peers) {
+			synchronized (peer) {
+				ByteBuffer pending = peer.pending;
+				if (pending.position() + bytes.length > maxPending) {
+					if (peer.dropped++ == 0) {
+						Log.warn("Cluster peer " + peer.address + " is not keeping up, dropping messages");
+					}
+					continue;
+				}
+				if (pending.remaining() < bytes.length) {
+					ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity()*2, pending.position() + bytes.length));
+					pending.flip();
+					grown.put(pending);
+					peer.pending = grown;
+					pending = grown;
+				}
+				pending.put(bytes);
+				if (!peer.scheduled) {
+					peer.scheduled = true;
+					scheduled.offer(peer);
+					wakeup = true;
+				}
+			}
+		}
+		if (wakeup) {
+			Selector s = selector;
+			if (s != null) {
+				s.wakeup();
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			t = thread;
+			thread = null;
+		}
+		selector.wakeup();
+		try {
+			t.join(RECONNECT_DELAY);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				long now = System.currentTimeMillis();
+				for (Peer peer: peers) {
+					if (peer.channel == null && now >= peer.reconnectAt) {
+						connect(peer);
+					}
+				}
+				Peer peer;
+				while ((peer = scheduled.poll()) != null) {
+					synchronized (peer) {
+						peer.scheduled = false;
+					}
+					if (peer.connected) {
+						flush(peer);
+					}
+				}
+				selector.select(RECONNECT_DELAY);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.attachment() instanceof Peer) {
+						Peer p = (Peer)key.attachment();
+						if (key.isConnectable()) {
+							finishConnect(p);
+						} else if (key.isWritable()) {
+							flush(p);
+						}
+					} else if (key.isReadable()) {
+						read((Inbound)key.attachment());
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// Stopped
+		} catch (IOException e) {
+			Log.warn("Cluster bus failed", e);
+		} finally {
+			for (SelectionKey key: selector.keys()) {
+				close(key.channel());
+			}
+			close(server);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private void accept() {
+		try {
+			SocketChannel channel = server.accept();
+			if (channel != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.register(selector, SelectionKey.OP_READ, new Inbound(channel));
+			}
+		} catch (IOException e) {
+			Log.debug("Cluster bus accept failed: " + e);
+		}
+	}
+
+	private void connect(Peer peer) {
+		try {
+			peer.channel = SocketChannel.open();
+			peer.channel.configureBlocking(false);
+			peer.channel.socket().setTcpNoDelay(true);
+			peer.key = peer.channel.register(selector, SelectionKey.OP_CONNECT, peer);
+			if (peer.channel.connect(peer.address)) {
+				finishConnect(peer);
+			}
+		} catch (IOException e) {
+			disconnect(peer, e);
+		}
+	}
+
+	private void finishConnect(Peer peer) {
+		try {
+			if (peer.channel.finishConnect()) {
+				Log.info("Connected to cluster peer " + peer.address);
+				peer.connected = true;
+				peer.key.interestOps(0);
+				flush(peer);
+			}
+		} catch (IOException e) {
+			disconnect(peer, e);
+		}
+	}
+
+	/**
+	 * Write what is pending for a peer, until it's all written or the socket is full.
+	 */
+	private void flush(Peer peer) {
+		try {
+			for (;;) {
+				if (peer.writing == null || !peer.writing.hasRemaining()) {
+					synchronized (peer) {
+						if (peer.pending.position() == 0) {
+							break;
+						}
+						ByteBuffer next = peer.writing == null ? ByteBuffer.allocate(peer.pending.capacity()) : peer.writing;
+						next.clear();
+						peer.writing = peer.pending;
+						peer.pending = next;
+						if (peer.dropped > 0) {
+							Log.info("Dropped " + peer.dropped + " messages for cluster peer " + peer.address);
+							peer.dropped = 0;
+						}
+					}
+					peer.writing.flip();
+				}
+				peer.channel.write(peer.writing);
+				if (peer.writing.hasRemaining()) {
+					peer.key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			peer.key.interestOps(0);
+		} catch (IOException e) {
+			disconnect(peer, e);
+		}
+	}
+
+	private void disconnect(Peer peer, IOException cause) {
+		if (peer.connected) {
+			Log.info("Lost cluster peer " + peer.address + ": " + cause);
+		} else {
+			Log.debug("Can't connect to cluster peer " + peer.address + ": " + cause);
+		}
+		close(peer.channel);
+		peer.channel = null;
+		peer.key = null;
+		peer.connected = false;
+		// Whatever was partly written is lost, so the next connection starts on a message boundary.
+		peer.writing = null;
+		peer.reconnectAt = System.currentTimeMillis() + RECONNECT_DELAY;
+	}
+
+	private void read(Inbound inbound) {
+		try {
+			if (inbound.channel.read(inbound.buffer) < 0) {
+				close(inbound.channel);
+				return;
+			}
+			inbound.buffer.flip();
+			ClusterMessage message;
+			while ((message = ClusterMessage.decode(inbound.buffer)) != null) {
+				try {
+					listener.onMessage(message);
+				} catch (RuntimeException e) {
+					Log.warn("Failed to deliver cluster message", e);
+				}
+			}
+			inbound.buffer.compact();
+			if (!inbound.buffer.hasRemaining()) {
+				if (inbound.buffer.capacity() > maxPending) {
+					// No peer sends a message this large.
+					Log.warn("Oversized message from cluster peer, closing connection");
+					close(inbound.channel);
+					return;
+				}
+				// A message larger than the buffer.
+				ByteBuffer grown = ByteBuffer.allocate(inbound.buffer.capacity()*2);
+				inbound.buffer.flip();
+				grown.put(inbound.buffer);
+				inbound.buffer = grown;
+			}
+		} catch (IllegalArgumentException e) {
+			Log.warn("Invalid data from cluster peer, closing connection: " + e.getMessage());
+			close(inbound.channel);
+		} catch (IOException e) {
+			close(inbound.channel);
+		}
+	}
+
+	private static void close(Channel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+}
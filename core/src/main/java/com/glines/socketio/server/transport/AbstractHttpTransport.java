@@ -93,7 +93,10 @@ public abstract class AbstractHttpTransport extends AbstractTransport {
 				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			}
 		} else if (sessionId != null && sessionId.length() > 0) {
-			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			if (!(sessionFactory instanceof SocketIOSession.RoutingFactory) ||
+					!((SocketIOSession.RoutingFactory)sessionFactory).routeRequest(sessionId, request, response)) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			}
 		} else {
 			if ("GET".equals(request.getMethod())) {
 				session = connect(request, response, inboundFactory, sessionFactory);
@@ -25,28 +25,138 @@ package com.glines.socketio.server.transport;
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 
+import org.eclipse.jetty.util.log.Log;
+
+import com.glines.socketio.common.DisconnectReason;
+import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.OutboundMemoryAccountant;
+import com.glines.socketio.server.RequestPath;
+import com.glines.socketio.server.SocketIOBufferFullException;
+import com.glines.socketio.server.SocketIOClosedException;
+import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOSession;
 import com.glines.socketio.server.Transport;
 
 public abstract class AbstractTransport implements Transport {
+	/**
+	 * What to do with a frame that doesn't fit in a session's buffer, one of the
+	 * {@link OverflowPolicy} names. Defaults to BLOCK, which parks the sending thread for up
+	 * to maxIdleTime.
+	 */
+	public static final String OVERFLOW_POLICY_KEY = "overflowPolicy";
+	/**
+	 * Threads writing delayed flushes and asynchronous sends, for a transport that doesn't
+	 * share its servlet's flush stage. Defaults to the number of processors.
+	 */
+	public static final String FLUSH_THREADS_KEY = "flushThreads";
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private int flushThreads = Runtime.getRuntime().availableProcessors();
+	private volatile FlushScheduler flushScheduler = null;
+	private boolean ownsFlushScheduler = false;
+
+	/**
+	 * Hands each parsed frame straight to the session, without building an intermediate list.
+	 */
+	protected static class SessionFrameDispatcher implements SocketIOFrame.FrameVisitor {
+		private final SocketIOSession session;
+
+		public SessionFrameDispatcher(SocketIOSession session) {
+			this.session = session;
+		}
+
+		@Override
+		public boolean onFrame(SocketIOFrame.FrameType frameType, int messageType, CharSequence data) {
+			session.onMessage(new SocketIOFrame(frameType, messageType, data.toString()));
+			return true;
+		}
+	}
+
 	protected String extractSessionId(HttpServletRequest request) {
-    	String path = request.getPathInfo();
-    	if (path != null && path.length() > 0 && !"/".equals(path)) {
-	    	if (path.startsWith("/")) path = path.substring(1);
-	    	String[] parts = path.split("/");
-	    	if (parts.length >= 2) {
-	    		return parts[1] == null ? null : (parts[1].length() == 0 ? null : parts[1]);
-	    	}
-    	}
-    	return null;
+		RequestPath path = RequestPath.of(request);
+		return path == null ? null : path.getSessionId();
+	}
+
+	/**
+	 * @return What to do with outbound frames that do not fit in a session's buffer.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Share a flush stage with other transports instead of creating one. Must be called
+	 * before init. The caller shuts the stage down.
+	 */
+	public synchronized void setFlushScheduler(FlushScheduler flushScheduler) {
+		this.flushScheduler = flushScheduler;
+		this.ownsFlushScheduler = false;
+	}
+
+	/**
+	 * @return The stage running this transport's delayed flushes, whose getters expose the
+	 * batch sizes it achieves. Shared with the servlet's other transports, or created for
+	 * this transport on first use if none was set.
+	 */
+	public FlushScheduler getFlushScheduler() {
+		FlushScheduler scheduler = flushScheduler;
+		if (scheduler == null) {
+			synchronized (this) {
+				if (flushScheduler == null) {
+					flushScheduler = new FlushScheduler(flushThreads);
+					ownsFlushScheduler = true;
+				}
+				scheduler = flushScheduler;
+			}
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Wait while the outbound memory budget is throttling producers, for up to maxWait under
+	 * the BLOCK policy and not at all under the others. If the budget is still exhausted the
+	 * overflow policy is applied to the frame: FAIL_FAST throws, the DROP policies and
+	 * CONFLATE drop it, and BLOCK and DISCONNECT disconnect the session.
+	 * @param handler The session's transport handler, aborted on disconnection.
+	 * @return false if the frame is to be dropped.
+	 */
+	protected boolean awaitCapacity(SocketIOSession session, SocketIOSession.SessionTransportHandler handler,
+			OutboundMemoryAccountant.Account account, long maxWait) throws SocketIOException {
+		OverflowPolicy policy = getOverflowPolicy();
+		if (account.awaitCapacity(policy == OverflowPolicy.BLOCK ? maxWait : 0)) {
+			return true;
+		}
+		switch (policy) {
+		case FAIL_FAST:
+			throw new SocketIOBufferFullException("Outbound memory budget exhausted");
+		case DROP_OLDEST:
+		case DROP_NEWEST:
+		case CONFLATE:
+			Log.debug("Session["+session.getSessionId()+"]: outbound memory budget exhausted, dropped frame");
+			return false;
+		default:
+			Log.debug("Session["+session.getSessionId()+"]: outbound memory budget exhausted, disconnecting");
+			session.onDisconnect(DisconnectReason.TIMEOUT);
+			handler.abort();
+			throw new SocketIOClosedException("Outbound memory budget exhausted");
+		}
 	}
 
 	@Override
 	public void init(ServletConfig config) {
-		
+		String policy = config.getInitParameter(OVERFLOW_POLICY_KEY);
+		if (policy != null) {
+			overflowPolicy = OverflowPolicy.fromString(policy);
+		}
+		String str = config.getInitParameter(FLUSH_THREADS_KEY);
+		if (str != null) {
+			flushThreads = Integer.parseInt(str);
+		}
 	}
 
 	@Override
-	public void destroy() {
-		
+	public synchronized void destroy() {
+		if (ownsFlushScheduler) {
+			flushScheduler.shutdown();
+		}
 	}
 }
@@ -0,0 +1,224 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.log.Log;
+
+import com.glines.socketio.server.OutboundMemoryAccountant;
+import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOSession;
+import com.glines.socketio.server.Transport;
+import com.glines.socketio.server.transport.ConnectionTimeoutPreventor.IdleCheck;
+
+/**
+ * Streams frames as Server-Sent Events (text/event-stream). Each event costs its id and
+ * "data:" prefix; there are no per-message headers or script wrappers.
+ * <p>
+ * Event ids are "sessionId:sequence". When the stream is lost the session is kept for the
+ * same timeout as a resumable XHR session. When the browser reconnects it sends the last id
+ * it saw as Last-Event-ID, and the stream is moved onto the new request with the events that
+ * were written after that id replayed, as long as they are still in the replay log.
+ * Upstream messages are POSTed to /eventsource/sessionId as with the other XHR transports.
+ */
+public class EventSourceTransport extends XHRTransport {
+	public static final String TRANSPORT_NAME = "eventsource";
+	public static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+
+	private class EventSourceSessionHelper extends XHRSessionHelper {
+		private final String idPrefix;
+		private long resumeAfter = 0;
+		private IdleCheck _idleCheck;
+
+		private IdleCheck getIdleCheck() {
+			if (_idleCheck == null) {
+				_idleCheck = ConnectionTimeoutPreventor.newTimeoutPreventor();
+			}
+			return _idleCheck;
+		}
+
+		EventSourceSessionHelper(SocketIOSession session, IdleCheck idleCheck) {
+			super(session, true);
+			this.idPrefix = "id: " + session.getSessionId() + ':';
+			_idleCheck = idleCheck;
+		}
+
+		protected void startSend(HttpServletResponse response) throws IOException {
+			response.setContentType("text/event-stream; charset=UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+			response.setHeader("Connection", "keep-alive");
+			response.flushBuffer();
+		}
+
+		protected void writeData(ServletResponse response, String data) throws IOException {
+			try {
+				getIdleCheck().activity();
+			} catch (Exception e) {
+				Log.warn(e);
+			}
+			String event;
+			// Writes happen both under the helper's lock and outside it, so numbering and
+			// appending an event is done under the log's lock.
+			ReplayLog replayLog = getReplayLog();
+			synchronized (replayLog) {
+				event = formatEvent(replayLog.getLastSeq() + 1, data);
+				replayLog.append(event);
+			}
+			ServletOutputStream os = response.getOutputStream();
+			os.print(event);
+			response.flushBuffer();
+		}
+
+		/**
+		 * An event's data may not contain line breaks, so each line becomes a data field
+		 * which the browser joins back together with '\n'.
+		 */
+		private String formatEvent(long seq, String data) {
+			StringBuilder sb = new StringBuilder(idPrefix.length() + data.length() + 32);
+			sb.append(idPrefix).append(seq).append('\n');
+			int start = 0;
+			int len = data.length();
+			for (int i = 0; i < len; i++) {
+				char c = data.charAt(i);
+				if (c == '\n' || c == '\r') {
+					sb.append("data: ").append(data, start, i).append('\n');
+					if (c == '\r' && i + 1 < len && data.charAt(i + 1) == '\n') {
+						i++;
+					}
+					start = i + 1;
+				}
+			}
+			sb.append("data: ").append(data, start, len).append("\n\n");
+			return sb.toString();
+		}
+
+		/**
+		 * Events are logged as they are formatted, with the ids the browser will report.
+		 */
+		@Override
+		void logWritten(String data) {
+		}
+
+		protected void finishSend(ServletResponse response) throws IOException {
+		};
+
+		protected void customConnect(HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			startSend(response);
+			writeData(response, SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId()));
+			writeData(response, SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, "" + HEARTBEAT_DELAY));
+		}
+
+		/**
+		 * @param lastSeq Sequence number of the last event the client received.
+		 * @return false if events after lastSeq are no longer available, or the session is closed.
+		 */
+		boolean resume(HttpServletRequest request, HttpServletResponse response, long lastSeq)
+				throws IOException {
+			synchronized (this) {
+				ReplayLog replayLog = getReplayLog();
+				if (!replayLog.canReplayAfter(lastSeq)) {
+					return false;
+				}
+				_idleCheck = ConnectionTimeoutPreventor.newTimeoutPreventor();
+				resumeAfter = lastSeq;
+				replayLog.acknowledge(lastSeq);
+				session.clearTimeoutTimer();
+				return reattach(request, response);
+			}
+		}
+
+		@Override
+		protected void replayMissed(ServletResponse response) throws IOException {
+			String missed = getReplayLog().since(resumeAfter);
+			if (missed.length() > 0) {
+				response.getOutputStream().print(missed);
+				response.flushBuffer();
+			}
+		}
+	}
+
+	private final int replaySize;
+
+	/**
+	 * Up to bufferSize chars of the most recent events are kept for replay.
+	 */
+	public EventSourceTransport(int bufferSize, int maxIdleTime) {
+		super(bufferSize, maxIdleTime);
+		this.replaySize = bufferSize;
+	}
+
+	@Override
+	public String getName() {
+		return TRANSPORT_NAME;
+	}
+
+	/**
+	 * Event ids already make every session resumable, with a log of formatted events. It
+	 * keeps resumeWindow chars if that is set, otherwise bufferSize.
+	 */
+	@Override
+	ReplayLog newReplayLog(OutboundMemoryAccountant.Account account) {
+		ReplayLog log = super.newReplayLog(account);
+		return log != null ? log : new ReplayLog(replaySize, account);
+	}
+
+	protected XHRSessionHelper createHelper(SocketIOSession session) {
+		IdleCheck idleCheck = ConnectionTimeoutPreventor.newTimeoutPreventor();
+		return new EventSourceSessionHelper(session, idleCheck);
+	}
+
+	/**
+	 * Resume the session named by Last-Event-ID if it can be, otherwise start a new one.
+	 */
+	@Override
+	protected SocketIOSession connect(HttpServletRequest request,
+			HttpServletResponse response, Transport.InboundFactory inboundFactory,
+			SocketIOSession.Factory sessionFactory) throws IOException {
+		String lastEventId = request.getHeader(LAST_EVENT_ID_HEADER);
+		int sep = lastEventId == null ? -1 : lastEventId.lastIndexOf(':');
+		if (sep > 0) {
+			SocketIOSession session = sessionFactory.getSession(lastEventId.substring(0, sep));
+			if (session != null && session.getTransportHandler() instanceof EventSourceSessionHelper) {
+				EventSourceSessionHelper helper = (EventSourceSessionHelper)session.getTransportHandler();
+				try {
+					long lastSeq = Long.parseLong(lastEventId.substring(sep + 1));
+					if (helper.resume(request, response, lastSeq)) {
+						return session;
+					}
+				} catch (NumberFormatException e) {
+					// Not one of ours, start a new session.
+				}
+				Log.debug("Session["+session.getSessionId()+"]: can't resume after " + lastEventId);
+				helper.disconnect();
+			}
+		}
+		return super.connect(request, response, inboundFactory, sessionFactory);
+	}
+}
@@ -0,0 +1,301 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Answers Flash socket policy file requests from a single non-blocking selector thread.
+ * <p>
+ * The response is built once into a direct buffer and every connection writes a duplicate
+ * of it. Connections that have not sent their request and been answered within the read
+ * timeout are closed, and no more are accepted while maxConnections are open. If accepting
+ * fails, as when the process runs out of file descriptors, the server stops accepting for
+ * a second and then tries again.
+ */
+class FlashPolicyServer implements Runnable {
+	private static final String POLICY_FILE_REQUEST = "<policy-file-request/>";
+	private static final long ACCEPT_RETRY_DELAY = 1000;
+
+	private static final class Client {
+		final SocketChannel channel;
+		final long deadline;
+		int received = 0;
+		ByteBuffer response = null;
+
+		Client(SocketChannel channel, long deadline) {
+			this.channel = channel;
+			this.deadline = deadline;
+		}
+	}
+
+	private final InetSocketAddress address;
+	private final ByteBuffer response;
+	private final int maxConnections;
+	private final long readTimeout;
+	// Only used by the selector thread.
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+	// In accept order, which with a fixed timeout is also deadline order.
+	private final ArrayDeque<Client> clients = new ArrayDeque<Client>();
+	private int open = 0;
+	// When to start accepting again after accept failed, or 0 if it didn't.
+	private long acceptRetryAt = 0;
+	private ServerSocketChannel server;
+	private SelectionKey acceptKey;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * @param readTimeout Milliseconds a connection has to send its request and read the answer.
+	 */
+	FlashPolicyServer(String host, int port, String domain, String ports, int maxConnections, long readTimeout) {
+		this.address = new InetSocketAddress(host, port);
+		this.maxConnections = maxConnections;
+		this.readTimeout = readTimeout;
+		String policy = "<cross-domain-policy><allow-access-from domain=\"" + domain +
+				"\" to-ports=\"" + ports + "\" /></cross-domain-policy>" +
+				System.getProperty("line.separator") + "\0";
+		byte[] bytes;
+		try {
+			bytes = policy.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+		buf.put(bytes);
+		buf.flip();
+		this.response = buf.asReadOnlyBuffer();
+	}
+
+	synchronized void start() throws IOException {
+		selector = Selector.open();
+		try {
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address);
+			server.configureBlocking(false);
+			acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			if (server != null) {
+				server.close();
+			}
+			selector.close();
+			throw e;
+		}
+		running = true;
+		thread = new Thread(this, "SocketIO-FlashPolicy");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				long timeout = 0;
+				Client first = clients.peekFirst();
+				if (first != null) {
+					timeout = Math.max(1, first.deadline - System.currentTimeMillis());
+				}
+				if (acceptRetryAt != 0) {
+					long retry = Math.max(1, acceptRetryAt - System.currentTimeMillis());
+					timeout = timeout == 0 ? retry : Math.min(timeout, retry);
+				}
+				selector.select(timeout);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						read(key);
+					} else if (key.isWritable()) {
+						write(key);
+					}
+				}
+				expire();
+				resumeAccepting();
+			}
+		} catch (IOException e) {
+			Log.warn("Flash policy server failed", e);
+		} catch (ClosedSelectorException e) {
+			// Stopped.
+		} finally {
+			for (SelectionKey key: selector.keys()) {
+				if (key.attachment() != null) {
+					close(key);
+				}
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				// Ignore error on close.
+			}
+		}
+	}
+
+	private void accept() {
+		while (open < maxConnections) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				Log.warn("Flash policy server accept failed, retrying in " + ACCEPT_RETRY_DELAY + "ms: " + e);
+				acceptRetryAt = System.currentTimeMillis() + ACCEPT_RETRY_DELAY;
+				acceptKey.interestOps(0);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				Client client = new Client(channel, System.currentTimeMillis() + readTimeout);
+				channel.register(selector, SelectionKey.OP_READ, client);
+				clients.addLast(client);
+				open++;
+			} catch (IOException e) {
+				Log.debug("Flash policy connection failed: " + e);
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// Ignore error on close.
+				}
+			}
+		}
+		// Leave the rest in the backlog until some connections are done.
+		acceptKey.interestOps(0);
+	}
+
+	/**
+	 * Start accepting again once the delay after a failed accept is over.
+	 */
+	private void resumeAccepting() {
+		if (acceptRetryAt != 0 && acceptRetryAt <= System.currentTimeMillis()) {
+			acceptRetryAt = 0;
+			if (open < maxConnections) {
+				acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			}
+		}
+	}
+
+	private void read(SelectionKey key) {
+		Client client = (Client)key.attachment();
+		try {
+			readBuffer.clear();
+			int n = client.channel.read(readBuffer);
+			if (n < 0) {
+				close(key);
+				return;
+			}
+			boolean complete = false;
+			for (int i = 0; i < n; i++) {
+				if (readBuffer.get(i) == 0 || ++client.received > POLICY_FILE_REQUEST.length()) {
+					complete = true;
+					break;
+				}
+			}
+			if (complete) {
+				client.response = response.duplicate();
+				key.interestOps(SelectionKey.OP_WRITE);
+				write(key);
+			}
+		} catch (IOException e) {
+			Log.debug("Flash policy request failed: " + e);
+			close(key);
+		}
+	}
+
+	private void write(SelectionKey key) {
+		Client client = (Client)key.attachment();
+		try {
+			client.channel.write(client.response);
+			if (!client.response.hasRemaining()) {
+				close(key);
+			}
+		} catch (IOException e) {
+			Log.debug("Flash policy response failed: " + e);
+			close(key);
+		}
+	}
+
+	/**
+	 * Close the connections whose deadline has passed.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Client client;
+		while ((client = clients.peekFirst()) != null && (!client.channel.isOpen() || client.deadline <= now)) {
+			clients.pollFirst();
+			if (client.channel.isOpen()) {
+				Log.debug("Flash policy request timed out");
+				close(client.channel.keyFor(selector));
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		Client client = (Client)key.attachment();
+		key.cancel();
+		key.attach(null);
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			// Ignore error on close.
+		}
+		if (open-- == maxConnections && running && acceptRetryAt == 0) {
+			acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+		}
+	}
+}
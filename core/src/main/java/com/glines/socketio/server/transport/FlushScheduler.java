@@ -0,0 +1,143 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs the delayed flushes of a transport's flush window, and records the size of the
+ * batches they write.
+ * <p>
+ * Flushes write to the client, so the stage has a few threads to keep one slow client
+ * from holding up the flushes of every other session. The threads are only started once
+ * something is scheduled, and one stage is normally shared by all of a servlet's transports.
+ */
+public class FlushScheduler {
+	/**
+	 * Number of batch size histogram buckets. Bucket i counts batches of 2^i to 2^(i+1)-1
+	 * frames, the last bucket counts everything larger.
+	 */
+	public static final int HISTOGRAM_BUCKETS = 12;
+
+	private final int threads;
+	// Created on first use, guarded by this.
+	private ScheduledExecutorService executor = null;
+	private boolean shutdown = false;
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong maxBatch = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	public FlushScheduler(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @param delay Delay in milliseconds.
+	 * @throws RejectedExecutionException If the stage has been shut down.
+	 */
+	public ScheduledFuture<?> schedule(Runnable flush, long delay) {
+		return executor().schedule(flush, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized ScheduledExecutorService executor() {
+		if (executor == null) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Flush scheduler shut down");
+			}
+			final AtomicInteger count = new AtomicInteger();
+			executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SocketIO-Flush-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * @param size Number of frames written in one batch.
+	 */
+	public void recordBatch(int size) {
+		if (size <= 0) {
+			return;
+		}
+		batches.incrementAndGet();
+		frames.addAndGet(size);
+		long max;
+		while (size > (max = maxBatch.get()) && !maxBatch.compareAndSet(max, size)) {
+			// retry
+		}
+		int bucket = 31 - Integer.numberOfLeadingZeros(size);
+		histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+	}
+
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	public long getFrameCount() {
+		return frames.get();
+	}
+
+	public long getMaxBatchSize() {
+		return maxBatch.get();
+	}
+
+	public double getAverageBatchSize() {
+		long n = batches.get();
+		return n == 0 ? 0 : (double)frames.get() / n;
+	}
+
+	/**
+	 * @return A copy of the batch size histogram, see {@link #HISTOGRAM_BUCKETS}.
+	 */
+	public long[] getBatchSizeHistogram() {
+		long[] copy = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = histogram.get(i);
+		}
+		return copy;
+	}
+
+	public synchronized void shutdown() {
+		shutdown = true;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
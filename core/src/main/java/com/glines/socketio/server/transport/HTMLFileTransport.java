@@ -38,6 +38,13 @@ import java.util.Arrays;
 public class HTMLFileTransport extends XHRTransport {
 	public static final String TRANSPORT_NAME = "htmlfile";
 
+	private static final SocketIOFrame.Envelope SCRIPT_ENVELOPE = new SocketIOFrame.Envelope() {
+		@Override
+		public String wrap(String data) {
+			return "<script>parent.s._("+ JSON.toString(data) +", document);</script>";
+		}
+	};
+
 	private class HTMLFileSessionHelper extends XHRSessionHelper {
 		private IdleCheck _idleCheck;
 
@@ -65,12 +72,21 @@ public class HTMLFileTransport extends XHRTransport {
 		}
 		
 		protected void writeData(ServletResponse response, String data) throws IOException {
+			writeScript(response, SCRIPT_ENVELOPE.wrap(data));
+		}
+
+		@Override
+		protected void writeFrame(ServletResponse response, SocketIOFrame frame) throws IOException {
+			writeScript(response, frame.encode(SCRIPT_ENVELOPE));
+		}
+
+		private void writeScript(ServletResponse response, String script) throws IOException {
             try {
                 getIdleCheck().activity();
             } catch (Exception e) {
                 Log.warn(e);
             }
-			response.getOutputStream().print("<script>parent.s._("+ JSON.toString(data) +", document);</script>");
+			response.getOutputStream().print(script);
 			response.flushBuffer();
 		}
 
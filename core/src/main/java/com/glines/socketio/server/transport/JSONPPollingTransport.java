@@ -28,6 +28,7 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.glines.socketio.server.RequestPath;
 import com.glines.socketio.server.SocketIOFrame;
 import com.glines.socketio.server.SocketIOSession;
 
@@ -58,11 +59,9 @@ public class JSONPPollingTransport extends XHRTransport {
 
 		protected void customConnect(HttpServletRequest request,
 				HttpServletResponse response) throws IOException {
-	    	String path = request.getPathInfo();
-	    	if (path.startsWith("/")) path = path.substring(1);
-	    	String[] parts = path.split("/");
-	    	if (parts.length >= 4) {
-	    		jsonpIndex = Integer.parseInt(parts[3]);
+	    	RequestPath path = RequestPath.of(request);
+	    	if (path != null && path.getIndex() >= 0) {
+	    		jsonpIndex = path.getIndex();
 	    	}
 			startSend(response);
 			writeData(response, SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId()));
@@ -0,0 +1,67 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+/**
+ * What a transport does with an outbound frame that does not fit in the session's buffer.
+ * Every policy except {@link #BLOCK} returns immediately.
+ */
+public enum OverflowPolicy {
+	/**
+	 * Wait up to maxIdleTime for space, then disconnect the session. This is the default.
+	 * The thread sending the frame is parked while it waits, which for a message sent while
+	 * handling another request is that request's thread. Applications sending to slow clients
+	 * from request threads should choose another policy or a short maxIdleTime.
+	 */
+	BLOCK,
+	/**
+	 * Reject the new frame with a {@link com.glines.socketio.server.SocketIOBufferFullException}.
+	 * The session stays connected.
+	 */
+	FAIL_FAST,
+	/**
+	 * Discard the oldest buffered data frames until the new frame fits.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Silently discard the new frame.
+	 */
+	DROP_NEWEST,
+	/**
+	 * Discard the oldest buffered data frames that were sent with a conflation key, which the
+	 * application has marked as superseded by later state, until the new frame fits. Frames
+	 * without a key are kept, and if they leave no room the new frame is discarded.
+	 */
+	CONFLATE,
+	/**
+	 * Disconnect the session as a slow consumer.
+	 */
+	DISCONNECT;
+
+	/**
+	 * @param name The policy name, case insensitive, with '-' or '_' between words.
+	 */
+	public static OverflowPolicy fromString(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.glines.socketio.server.OutboundMemoryAccountant;
+
+/**
+ * {@link TransportBuffer} built on a {@link LinkedBlockingQueue}, with a {@link Semaphore}
+ * tracking the free space.
+ */
+public class QueueTransportBuffer implements TransportBuffer {
+	/**
+	 * Queued message. The message is swapped out when it is conflated or removed.
+	 */
+	private static class Entry extends AtomicReference<String> {
+		private static final long serialVersionUID = 1L;
+		final String key;
+
+		Entry(String message, String key) {
+			super(message);
+			this.key = key;
+		}
+	}
+
+	private final int bufferSize;
+	private final Semaphore inputSemaphore;
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+	private final ConcurrentMap<String, Entry> conflated = new ConcurrentHashMap<String, Entry>();
+	private AtomicReference<BufferListener> listenerRef = new AtomicReference<BufferListener>();
+	private final OutboundMemoryAccountant.Account account;
+	
+	public QueueTransportBuffer(int bufferSize) {
+		this(bufferSize, null);
+	}
+
+	/**
+	 * @param account Where to report the UTF-8 size of buffered messages, or null.
+	 */
+	public QueueTransportBuffer(int bufferSize, OutboundMemoryAccountant.Account account) {
+		this.bufferSize = bufferSize;
+		this.inputSemaphore = new Semaphore(bufferSize);
+		this.account = account;
+	}
+
+	@Override
+	public void setListener(BufferListener listener) {
+		this.listenerRef.set(listener);
+	}
+	
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@Override
+	public int getAvailableBytes() {
+		return bufferSize - inputSemaphore.availablePermits();
+	}
+
+	@Override
+	public int getFreeBytes() {
+		return inputSemaphore.availablePermits();
+	}
+
+	@Override
+	public int getCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int getMessageCount() {
+		return queue.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	@Override
+	public void clear() {
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			take(entry);
+		}
+	}
+	
+	@Override
+	public List<String> drainMessages() {
+		final List<String> list = new ArrayList<String>(queue.size());
+		drainMessages(new MessageSink() {
+			@Override
+			public void onMessage(String message) {
+				list.add(message);
+			}
+		});
+		return list;
+	}
+
+	@Override
+	public int drainMessages(MessageSink sink) {
+		int count = 0;
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			sink.onMessage(take(entry));
+			count++;
+		}
+		return count;
+	}
+	
+	@Override
+	public int evictMessages(MessageFilter filter) {
+		int count = 0;
+		for (Iterator<Entry> it = queue.iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			String msg = entry.get();
+			if (msg != null && filter.evict(msg, entry.key)) {
+				it.remove();
+				take(entry);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public String getMessage(long timeout) {
+		try {
+			Entry entry = queue.poll(timeout, TimeUnit.MILLISECONDS);
+			if (entry != null) {
+				return take(entry);
+			}
+			return null;
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+	
+	@Override
+	public boolean putMessage(String message, long timeout) {
+		return putMessage(message, null, timeout);
+	}
+
+	@Override
+	public boolean putMessage(String message, String conflationKey, long timeout) {
+		BufferListener listener = listenerRef.get();
+		if (listener != null) {
+			try {
+				if (queue.size() == 0) {
+					return listener.onMessage(message);
+				} else {
+					List<String> messages = drainMessages();
+					messages.add(message);
+					return listener.onMessages(messages);
+				}
+			} catch (Throwable t) {
+				return false;
+			}
+		} else {
+			if (conflationKey != null && replace(conflationKey, message)) {
+				return true;
+			}
+			try {
+				if (!inputSemaphore.tryAcquire(message.length(), timeout, TimeUnit.MILLISECONDS)) {
+					return false;
+				}
+				if (account != null) {
+					account.allocate(OutboundMemoryAccountant.utf8Length(message));
+				}
+				Entry entry = new Entry(message, conflationKey);
+				if (conflationKey != null) {
+					conflated.put(conflationKey, entry);
+				}
+				queue.offer(entry);
+				return true;
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Swap the message out of an entry that has been removed from the queue.
+	 */
+	private String take(Entry entry) {
+		String msg = entry.getAndSet(null);
+		if (entry.key != null) {
+			conflated.remove(entry.key, entry);
+		}
+		inputSemaphore.release(msg.length());
+		if (account != null) {
+			account.release(OutboundMemoryAccountant.utf8Length(msg));
+		}
+		return msg;
+	}
+
+	/**
+	 * @return false if no message with this key is still queued, or the replacement doesn't fit.
+	 */
+	private boolean replace(String key, String message) {
+		Entry entry = conflated.get(key);
+		if (entry == null) {
+			return false;
+		}
+		String old = entry.get();
+		if (old == null) {
+			return false;
+		}
+		int delta = message.length() - old.length();
+		if (delta > 0 && !inputSemaphore.tryAcquire(delta)) {
+			return false;
+		}
+		if (entry.compareAndSet(old, message)) {
+			if (delta < 0) {
+				inputSemaphore.release(-delta);
+			}
+			if (account != null) {
+				account.allocate(OutboundMemoryAccountant.utf8Length(message) -
+						OutboundMemoryAccountant.utf8Length(old));
+			}
+			return true;
+		}
+		if (delta > 0) {
+			inputSemaphore.release(delta);
+		}
+		return false;
+	}
+}
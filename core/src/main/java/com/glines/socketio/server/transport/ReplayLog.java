@@ -0,0 +1,134 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.ArrayDeque;
+
+import com.glines.socketio.server.OutboundMemoryAccountant;
+
+/**
+ * The most recently written output of a session, numbered in order, so that a client that
+ * lost some of it can have it written again. Entries are dropped, oldest first, once they
+ * are acknowledged or once more than maxChars are retained.
+ * <p>
+ * Sequence numbers start at 1 and are never reused. All methods are thread safe.
+ */
+class ReplayLog {
+	private static final class Entry {
+		final long seq;
+		final String text;
+		final int bytes;
+
+		Entry(long seq, String text, int bytes) {
+			this.seq = seq;
+			this.text = text;
+			this.bytes = bytes;
+		}
+	}
+
+	private final int maxChars;
+	private final OutboundMemoryAccountant.Account account;
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private int chars = 0;
+	private long nextSeq = 1;
+
+	/**
+	 * @param account Where retained output is accounted for, or null.
+	 */
+	ReplayLog(int maxChars, OutboundMemoryAccountant.Account account) {
+		this.maxChars = maxChars;
+		this.account = account;
+	}
+
+	/**
+	 * @return The sequence number given to text.
+	 */
+	synchronized long append(String text) {
+		long seq = nextSeq++;
+		int bytes = 0;
+		if (account != null) {
+			bytes = OutboundMemoryAccountant.utf8Length(text);
+			account.allocate(bytes);
+		}
+		entries.addLast(new Entry(seq, text, bytes));
+		chars += text.length();
+		while (chars > maxChars && entries.size() > 1) {
+			remove();
+		}
+		return seq;
+	}
+
+	/**
+	 * @return The sequence number of the last entry appended, or 0 if there is none.
+	 */
+	synchronized long getLastSeq() {
+		return nextSeq - 1;
+	}
+
+	/**
+	 * @return true if everything after seq is still retained.
+	 */
+	synchronized boolean canReplayAfter(long seq) {
+		long oldest = entries.isEmpty() ? nextSeq : entries.peekFirst().seq;
+		return seq >= oldest - 1 && seq < nextSeq;
+	}
+
+	/**
+	 * @return The concatenation of the entries after seq, which may be empty.
+	 */
+	synchronized String since(long seq) {
+		StringBuilder sb = null;
+		for (Entry e: entries) {
+			if (e.seq > seq) {
+				if (sb == null) {
+					sb = new StringBuilder();
+				}
+				sb.append(e.text);
+			}
+		}
+		return sb == null ? "" : sb.toString();
+	}
+
+	/**
+	 * Drop the entries up to and including seq, which the client has received.
+	 */
+	synchronized void acknowledge(long seq) {
+		while (!entries.isEmpty() && entries.peekFirst().seq <= seq) {
+			remove();
+		}
+	}
+
+	synchronized void clear() {
+		while (!entries.isEmpty()) {
+			remove();
+		}
+	}
+
+	private void remove() {
+		Entry e = entries.removeFirst();
+		chars -= e.text.length();
+		if (account != null) {
+			account.release(e.bytes);
+		}
+	}
+}
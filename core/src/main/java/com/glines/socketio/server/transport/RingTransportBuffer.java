@@ -0,0 +1,431 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.glines.socketio.server.OutboundMemoryAccountant;
+
+/**
+ * {@link TransportBuffer} built on a pre-sized multi-producer/single-consumer ring.
+ * <p>
+ * Producers claim a slot with a single CAS and reserve space with another, so buffering a
+ * message allocates nothing and takes no lock. A producer only blocks (on a monitor) when the
+ * buffer is full and a timeout was given. Only one thread at a time may remove messages
+ * (drain, getMessage or clear).
+ * <p>
+ * The buffer is bounded both by its size and by its slot capacity.
+ * <p>
+ * While a listener is set, a message is only passed to it if nothing is buffered. Otherwise it
+ * is buffered behind the waiting messages for the consumer to drain, since producers never
+ * remove messages themselves.
+ * <p>
+ * A message put with a conflation key replaces, with a CAS on its slot, the message with the
+ * same key that is still waiting in the ring. Keyed puts cost a map lookup and update.
+ * <p>
+ * Evicting messages moves the ones that are kept towards the tail, so the slots freed up
+ * are at the head and can be reused at once.
+ */
+public class RingTransportBuffer implements TransportBuffer {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final int bufferSize;
+	private final AtomicReferenceArray<String> slots;
+	private final AtomicReferenceArray<String> keys;
+	private final ConcurrentMap<String, Long> conflated = new ConcurrentHashMap<String, Long>();
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicInteger used = new AtomicInteger();
+	private final AtomicInteger waitingProducers = new AtomicInteger();
+	private final AtomicInteger waitingConsumers = new AtomicInteger();
+	private final Object waitLock = new Object();
+	private final AtomicReference<BufferListener> listenerRef = new AtomicReference<BufferListener>();
+	private final OutboundMemoryAccountant.Account account;
+
+	public RingTransportBuffer(int bufferSize) {
+		this(bufferSize, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param bufferSize Maximum total size of the buffered messages.
+	 * @param capacity Maximum number of buffered messages, rounded up to a power of two.
+	 */
+	public RingTransportBuffer(int bufferSize, int capacity) {
+		this(bufferSize, capacity, null);
+	}
+
+	/**
+	 * @param bufferSize Maximum total size of the buffered messages.
+	 * @param capacity Maximum number of buffered messages, rounded up to a power of two.
+	 * @param account Where to report the UTF-8 size of buffered messages, or null.
+	 */
+	public RingTransportBuffer(int bufferSize, int capacity, OutboundMemoryAccountant.Account account) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.bufferSize = bufferSize;
+		this.slots = new AtomicReferenceArray<String>(size);
+		this.keys = new AtomicReferenceArray<String>(size);
+		this.mask = size - 1;
+		this.account = account;
+	}
+
+	@Override
+	public void setListener(BufferListener listener) {
+		listenerRef.set(listener);
+	}
+
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@Override
+	public int getAvailableBytes() {
+		return used.get();
+	}
+
+	@Override
+	public int getFreeBytes() {
+		return bufferSize - used.get();
+	}
+
+	@Override
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	@Override
+	public int getMessageCount() {
+		return (int)Math.min(tail.get() - head.get(), slots.length());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	@Override
+	public void clear() {
+		while (take() != null) {
+			// discard
+		}
+		signal(waitingProducers);
+	}
+
+	@Override
+	public List<String> drainMessages() {
+		final List<String> list = new ArrayList<String>((int)Math.min(tail.get() - head.get(), slots.length()));
+		drainMessages(new MessageSink() {
+			@Override
+			public void onMessage(String message) {
+				list.add(message);
+			}
+		});
+		return list;
+	}
+
+	@Override
+	public int drainMessages(MessageSink sink) {
+		int count = 0;
+		String msg;
+		try {
+			while ((msg = take()) != null) {
+				sink.onMessage(msg);
+				count++;
+			}
+		} finally {
+			signal(waitingProducers);
+		}
+		return count;
+	}
+
+	@Override
+	public int evictMessages(MessageFilter filter) {
+		long h = head.get();
+		long t = tail.get();
+		long end = h;
+		// Stop at the first slot whose producer has not published yet.
+		while (end < t && slots.get((int)(end & mask)) != null) {
+			end++;
+		}
+		int count = 0;
+		for (long s = h; s < end; s++) {
+			int idx = (int)(s & mask);
+			String key = keys.get(idx);
+			if (filter.evict(slots.get(idx), key)) {
+				// Swap so that a concurrent replace of this message fails.
+				String msg = slots.getAndSet(idx, null);
+				if (key != null) {
+					keys.set(idx, null);
+					conflated.remove(key, Long.valueOf(s));
+				}
+				release(msg.length());
+				if (account != null) {
+					account.release(OutboundMemoryAccountant.utf8Length(msg));
+				}
+				count++;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+		// Close the gaps from the newest message down, leaving the free slots at the head.
+		long d = end;
+		for (long s = end - 1; s >= h; s--) {
+			int idx = (int)(s & mask);
+			if (slots.get(idx) == null) {
+				continue;
+			}
+			d--;
+			if (d != s) {
+				int to = (int)(d & mask);
+				String msg = slots.getAndSet(idx, null);
+				String key = keys.get(idx);
+				keys.set(to, key);
+				slots.set(to, msg);
+				if (key != null) {
+					keys.set(idx, null);
+					conflated.replace(key, Long.valueOf(s), Long.valueOf(d));
+				}
+			}
+		}
+		head.set(d);
+		signal(waitingProducers);
+		return count;
+	}
+
+	@Override
+	public String getMessage(long timeout) {
+		String msg = poll();
+		if (msg != null || timeout <= 0) {
+			return msg;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		waitingConsumers.incrementAndGet();
+		try {
+			synchronized (waitLock) {
+				while ((msg = poll()) == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					TimeUnit.NANOSECONDS.timedWait(waitLock, remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Treat as timed out
+		} finally {
+			waitingConsumers.decrementAndGet();
+		}
+		return msg;
+	}
+
+	@Override
+	public boolean putMessage(String message, long timeout) {
+		return putMessage(message, null, timeout);
+	}
+
+	@Override
+	public boolean putMessage(String message, String conflationKey, long timeout) {
+		BufferListener listener = listenerRef.get();
+		if (listener != null && isEmpty()) {
+			try {
+				return listener.onMessage(message);
+			} catch (Throwable t) {
+				return false;
+			}
+		}
+		if (conflationKey != null && replace(conflationKey, message)) {
+			return true;
+		}
+		if (offer(message, conflationKey)) {
+			return true;
+		}
+		if (timeout <= 0 || message.length() > bufferSize) {
+			return false;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		waitingProducers.incrementAndGet();
+		try {
+			synchronized (waitLock) {
+				while (!offer(message, conflationKey)) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(waitLock, remaining);
+				}
+				return true;
+			}
+		} catch (InterruptedException e) {
+			return false;
+		} finally {
+			waitingProducers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Add a message without waiting.
+	 * @return false if there is not enough space or no free slot.
+	 */
+	public boolean offer(String message) {
+		return offer(message, null);
+	}
+
+	private boolean offer(String message, String key) {
+		int size = message.length();
+		if (!reserve(size)) {
+			return false;
+		}
+		int bytes = account == null ? 0 : OutboundMemoryAccountant.utf8Length(message);
+		if (account != null) {
+			account.allocate(bytes);
+		}
+		for (;;) {
+			long t = tail.get();
+			if (t - head.get() >= slots.length()) {
+				release(size);
+				if (account != null) {
+					account.release(bytes);
+				}
+				return false;
+			}
+			if (tail.compareAndSet(t, t + 1)) {
+				int idx = (int)(t & mask);
+				if (key != null) {
+					keys.set(idx, key);
+					conflated.put(key, Long.valueOf(t));
+				}
+				slots.set(idx, message);
+				signal(waitingConsumers);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest message. Must only be called by the consuming thread.
+	 * @return The oldest message or null if the buffer is empty.
+	 */
+	public String poll() {
+		String msg = take();
+		if (msg != null) {
+			signal(waitingProducers);
+		}
+		return msg;
+	}
+
+	private String take() {
+		long h = head.get();
+		int idx = (int)(h & mask);
+		// Swap rather than read so a concurrent replace can't slip in before the slot is cleared.
+		String msg = slots.getAndSet(idx, null);
+		if (msg == null) {
+			// Empty, or the producer that claimed this slot has not published yet.
+			return null;
+		}
+		String key = keys.get(idx);
+		if (key != null) {
+			keys.lazySet(idx, null);
+			conflated.remove(key, Long.valueOf(h));
+		}
+		head.lazySet(h + 1);
+		release(msg.length());
+		if (account != null) {
+			account.release(OutboundMemoryAccountant.utf8Length(msg));
+		}
+		return msg;
+	}
+
+	/**
+	 * Replace the waiting message put with key.
+	 * @return false if there is none, or the replacement doesn't fit.
+	 */
+	private boolean replace(String key, String message) {
+		Long seq = conflated.get(key);
+		if (seq == null || seq.longValue() < head.get()) {
+			return false;
+		}
+		int idx = (int)(seq.longValue() & mask);
+		String old = slots.get(idx);
+		if (old == null || !key.equals(keys.get(idx))) {
+			return false;
+		}
+		int delta = message.length() - old.length();
+		if (delta > 0 && !reserve(delta)) {
+			return false;
+		}
+		if (slots.compareAndSet(idx, old, message)) {
+			if (delta < 0) {
+				release(-delta);
+			}
+			if (account != null) {
+				account.allocate(OutboundMemoryAccountant.utf8Length(message) -
+						OutboundMemoryAccountant.utf8Length(old));
+			}
+			return true;
+		}
+		if (delta > 0) {
+			release(delta);
+		}
+		return false;
+	}
+
+	private boolean reserve(int size) {
+		for (;;) {
+			int current = used.get();
+			if (current + size > bufferSize) {
+				return false;
+			}
+			if (used.compareAndSet(current, current + size)) {
+				return true;
+			}
+		}
+	}
+
+	private void release(int size) {
+		used.addAndGet(-size);
+	}
+
+	private void signal(AtomicInteger waiters) {
+		if (waiters.get() > 0) {
+			synchronized (waitLock) {
+				waitLock.notifyAll();
+			}
+		}
+	}
+}
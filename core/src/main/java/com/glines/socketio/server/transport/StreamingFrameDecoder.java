@@ -0,0 +1,265 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.glines.socketio.server.SocketIOFrame;
+
+/**
+ * Decodes SocketIO frames straight from the bytes of a request body.
+ * <p>
+ * The optional <code>data=</code> form-urlencoding, UTF-8 and the <code>~type~len~</code>
+ * framing are all undone in a single pass over the stream, so the body is never materialized
+ * as a String. Each complete frame is handed to the visitor as soon as its last character
+ * has been read; the payload passed to the visitor is only valid for the duration of the call.
+ * <p>
+ * Parsing silently stops at the first part that fails to parse properly, the same as
+ * {@link SocketIOFrame#parse(CharSequence, SocketIOFrame.FrameVisitor)}.
+ * <p>
+ * Instances are not thread safe but may be reused for successive bodies.
+ */
+public class StreamingFrameDecoder {
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	private static final String FORM_PREFIX = "data=";
+	private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+	private static final int ST_START = 0;
+	private static final int ST_FRAME_TYPE = 1;
+	private static final int ST_MESSAGE_TYPE = 2;
+	private static final int ST_LENGTH = 3;
+	private static final int ST_DATA = 4;
+	private static final int ST_DONE = 5;
+
+	private final SocketIOFrame.FrameVisitor visitor;
+	private final byte[] buffer;
+	private final StringBuilder data = new StringBuilder();
+
+	// Form decoding state
+	private int prefixIdx;
+	private int percentDigits;
+	private int percentValue;
+
+	// UTF-8 decoding state
+	private int utf8Remaining;
+	private int utf8Value;
+	private int utf8Min;
+
+	// Framing state
+	private int state;
+	private SocketIOFrame.FrameType frameType;
+	private int messageType;
+	private int fieldDigits;
+	private int remaining;
+
+	public StreamingFrameDecoder(SocketIOFrame.FrameVisitor visitor) {
+		this(visitor, DEFAULT_BUFFER_SIZE);
+	}
+
+	public StreamingFrameDecoder(SocketIOFrame.FrameVisitor visitor, int bufferSize) {
+		this.visitor = visitor;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Decode every frame contained in the stream. The stream is read to its end, or until the
+	 * framing becomes invalid.
+	 *
+	 * @param in The request body.
+	 * @param formEncoded True if the body is <code>application/x-www-form-urlencoded</code>
+	 * 		and carries the frames in its <code>data</code> field.
+	 */
+	public void decode(InputStream in, boolean formEncoded) throws IOException {
+		reset(formEncoded);
+		int len;
+		while (state != ST_DONE && (len = in.read(buffer)) != -1) {
+			for (int i = 0; i < len && state != ST_DONE; i++) {
+				if (formEncoded) {
+					onFormByte(buffer[i]);
+				} else {
+					onByte(buffer[i] & 0xFF);
+				}
+			}
+		}
+	}
+
+	private void reset(boolean formEncoded) {
+		prefixIdx = formEncoded ? 0 : FORM_PREFIX.length();
+		percentDigits = -1;
+		utf8Remaining = 0;
+		state = ST_START;
+		data.setLength(0);
+	}
+
+	private void onFormByte(byte b) {
+		if (prefixIdx < FORM_PREFIX.length()) {
+			if (b == FORM_PREFIX.charAt(prefixIdx)) {
+				prefixIdx++;
+			} else {
+				state = ST_DONE;
+			}
+		} else if (percentDigits >= 0) {
+			int digit = hexValue(b);
+			if (digit < 0) {
+				// Malformed escape sequence.
+				state = ST_DONE;
+				return;
+			}
+			percentValue = (percentValue << 4) | digit;
+			if (++percentDigits == 2) {
+				percentDigits = -1;
+				onByte(percentValue);
+			}
+		} else if (b == '%') {
+			percentDigits = 0;
+			percentValue = 0;
+		} else {
+			onByte(b & 0xFF);
+		}
+	}
+
+	private void onByte(int b) {
+		if (utf8Remaining == 0) {
+			if (b < 0x80) {
+				onChar((char)b);
+			} else if ((b & 0xE0) == 0xC0) {
+				startSequence(b & 0x1F, 1, 0x80);
+			} else if ((b & 0xF0) == 0xE0) {
+				startSequence(b & 0x0F, 2, 0x800);
+			} else if ((b & 0xF8) == 0xF0) {
+				startSequence(b & 0x07, 3, 0x10000);
+			} else {
+				onChar(REPLACEMENT_CHAR);
+			}
+		} else if ((b & 0xC0) == 0x80) {
+			utf8Value = (utf8Value << 6) | (b & 0x3F);
+			if (--utf8Remaining == 0) {
+				if (utf8Value < utf8Min || utf8Value > Character.MAX_CODE_POINT) {
+					onChar(REPLACEMENT_CHAR);
+				} else if (utf8Value >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					// Character.highSurrogate() and lowSurrogate() need Java 7.
+					onChar((char)(((utf8Value - 0x10000) >>> 10) + 0xD800));
+					onChar((char)(((utf8Value - 0x10000) & 0x3FF) + 0xDC00));
+				} else {
+					onChar((char)utf8Value);
+				}
+			}
+		} else {
+			// Truncated sequence: replace it and decode this byte afresh.
+			utf8Remaining = 0;
+			onChar(REPLACEMENT_CHAR);
+			if (state != ST_DONE) {
+				onByte(b);
+			}
+		}
+	}
+
+	private void startSequence(int value, int remaining, int min) {
+		utf8Value = value;
+		utf8Remaining = remaining;
+		utf8Min = min;
+	}
+
+	private void onChar(char c) {
+		switch (state) {
+		case ST_START:
+			if (c == SocketIOFrame.SEPERATOR_CHAR) {
+				state = ST_FRAME_TYPE;
+			} else {
+				state = ST_DONE;
+			}
+			break;
+		case ST_FRAME_TYPE:
+			frameType = SocketIOFrame.FrameType.fromInt(hexValue(c));
+			if (frameType == SocketIOFrame.FrameType.UNKNOWN) {
+				state = ST_DONE;
+			} else {
+				messageType = 0;
+				fieldDigits = 0;
+				state = ST_MESSAGE_TYPE;
+			}
+			break;
+		case ST_MESSAGE_TYPE:
+			if (c == SocketIOFrame.SEPERATOR_CHAR) {
+				remaining = 0;
+				fieldDigits = 0;
+				state = ST_LENGTH;
+			} else {
+				messageType = appendHex(messageType, c);
+			}
+			break;
+		case ST_LENGTH:
+			if (c == SocketIOFrame.SEPERATOR_CHAR) {
+				if (fieldDigits == 0) {
+					state = ST_DONE;
+				} else if (remaining == 0) {
+					emit();
+				} else {
+					state = ST_DATA;
+				}
+			} else {
+				remaining = appendHex(remaining, c);
+			}
+			break;
+		case ST_DATA:
+			data.append(c);
+			if (--remaining == 0) {
+				emit();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return The accumulated value, or -1 (and state DONE) if c is not a hex digit or the value overflows.
+	 */
+	private int appendHex(int value, char c) {
+		int digit = hexValue(c);
+		if (digit < 0 || value > (Integer.MAX_VALUE >> 4)) {
+			state = ST_DONE;
+			return -1;
+		}
+		fieldDigits++;
+		return (value << 4) | digit;
+	}
+
+	private void emit() {
+		state = visitor.onFrame(frameType, messageType, data) ? ST_START : ST_DONE;
+		data.setLength(0);
+	}
+
+	private static int hexValue(int c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+}
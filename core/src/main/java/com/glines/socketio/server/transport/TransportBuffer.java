@@ -22,15 +22,13 @@
  */
 package com.glines.socketio.server.transport;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
-public class TransportBuffer {
+/**
+ * Outbound message buffer used by transports while no connection is available to write to.
+ * The size of the buffer is measured in the same units as {@link String#length()}.
+ */
+public interface TransportBuffer {
 	public interface BufferListener {
 		/**
 		 * @param message
@@ -39,94 +37,88 @@ public class TransportBuffer {
 		boolean onMessage(String message);
 		boolean onMessages(List<String> messages);
 	}
-	
-	private final int bufferSize;
-	private final Semaphore inputSemaphore;
-	private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
-	private AtomicReference<BufferListener> listenerRef = new AtomicReference<BufferListener>();
-	
-	public TransportBuffer(int bufferSize) {
-		this.bufferSize = bufferSize;
-		this.inputSemaphore = new Semaphore(bufferSize);
-	}
 
-	public void setListener(BufferListener listener) {
-		this.listenerRef.set(listener);
-	}
-	
-	public int getBufferSize() {
-		return bufferSize;
+	/**
+	 * Receives messages removed from the buffer by {@link TransportBuffer#drainMessages(MessageSink)}.
+	 */
+	public interface MessageSink {
+		void onMessage(String message);
 	}
 
-	public int getAvailableBytes() {
-		return bufferSize - inputSemaphore.availablePermits();
+	/**
+	 * Chooses the messages removed by {@link TransportBuffer#evictMessages(MessageFilter)}.
+	 */
+	public interface MessageFilter {
+		/**
+		 * @param conflationKey The key the message was put with, or null.
+		 * @return true to discard the message.
+		 */
+		boolean evict(String message, String conflationKey);
 	}
 
-	public int getFreeBytes() {
-		return inputSemaphore.availablePermits();
-	}
+	/**
+	 * While a listener is set, messages are passed directly to it instead of being buffered.
+	 * Anything already buffered is handed over along with the next message, unless the
+	 * implementation only lets its consumer remove messages, in which case new messages
+	 * are buffered behind it until it has been drained.
+	 */
+	void setListener(BufferListener listener);
 
-	public boolean isEmpty() {
-		return queue.isEmpty();
-	}
+	int getBufferSize();
 
-	public void clear() {
-		List<String> list = new ArrayList<String>();
-		queue.drainTo(list);
+	int getAvailableBytes();
 
-		for (String str: list) {
-			inputSemaphore.release(str.length());
-		}
-	}
-	
-	public List<String> drainMessages() {
-		List<String> list = new ArrayList<String>();
-		queue.drainTo(list);
-
-		for (String str: list) {
-			inputSemaphore.release(str.length());
-		}
-		
-		return list;
-	}
-	
-	public String getMessage(long timeout) {
-		try {
-			String msg = queue.poll(timeout, TimeUnit.MILLISECONDS);
-			if (msg != null) {
-				inputSemaphore.release(msg.length());
-			}
-			return msg;
-		} catch (InterruptedException e) {
-			return null;
-		}
-	}
-	
-	public boolean putMessage(String message, long timeout) {
-		BufferListener listener = listenerRef.get();
-		if (listener != null) {
-			try {
-				if (queue.size() == 0) {
-					return listener.onMessage(message);
-				} else {
-					ArrayList<String> messages = new ArrayList<String>(queue.size()+1);
-					queue.drainTo(messages);
-					messages.add(message);
-					return listener.onMessages(messages);
-				}
-			} catch (Throwable t) {
-				return false;
-			}
-		} else {
-			try {
-				if (!inputSemaphore.tryAcquire(message.length(), timeout, TimeUnit.MILLISECONDS)) {
-					return false;
-				}
-				queue.offer(message);
-				return true;
-			} catch (InterruptedException e) {
-				return false;
-			}
-		}
-	}
+	int getFreeBytes();
+
+	/**
+	 * @return The maximum number of messages the buffer can hold at once, or
+	 *         Integer.MAX_VALUE if it is bounded only by its size.
+	 */
+	int getCapacity();
+
+	/**
+	 * @return The number of buffered messages.
+	 */
+	int getMessageCount();
+
+	boolean isEmpty();
+
+	void clear();
+
+	List<String> drainMessages();
+
+	/**
+	 * Remove all buffered messages, oldest first, passing each to sink.
+	 * @return The number of messages drained.
+	 */
+	int drainMessages(MessageSink sink);
+
+	/**
+	 * Discard the buffered messages that filter picks, offering them oldest first. The
+	 * messages that are kept stay in order with their conflation keys. Must only be called
+	 * by the thread removing messages.
+	 * @return The number of messages discarded.
+	 */
+	int evictMessages(MessageFilter filter);
+
+	/**
+	 * @param timeout Maximum time to wait for a message, in milliseconds.
+	 * @return The oldest message or null if none arrived within the timeout.
+	 */
+	String getMessage(long timeout);
+
+	/**
+	 * @param timeout Maximum time to wait for space in the buffer, in milliseconds.
+	 * @return false if the message could not be buffered or delivered.
+	 */
+	boolean putMessage(String message, long timeout);
+
+	/**
+	 * Like {@link #putMessage(String, long)}, except that if a message put with the same
+	 * conflation key is still buffered it is replaced by this one, keeping its position.
+	 * @param conflationKey The key to conflate on, or null to always append.
+	 * @param timeout Maximum time to wait for space in the buffer, in milliseconds.
+	 * @return false if the message could not be buffered or delivered.
+	 */
+	boolean putMessage(String message, String conflationKey, long timeout);
 }
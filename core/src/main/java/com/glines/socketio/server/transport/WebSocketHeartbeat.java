@@ -0,0 +1,165 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.websocket.WebSocket;
+
+import com.glines.socketio.common.DisconnectReason;
+import com.glines.socketio.server.SocketIOSession;
+
+/**
+ * Heartbeat for WebSocket connections that uses WebSocket ping control frames instead of
+ * Socket.IO PING frames.
+ * <p>
+ * Inbound traffic only records a timestamp. A single task per connection looks at it once
+ * per interval and pings only if nothing arrived during the interval, so busy connections
+ * are never pinged and no timer is cancelled and rescheduled per message. Any inbound
+ * frame after a ping, the pong included, proves the peer is alive.
+ */
+class WebSocketHeartbeat implements Runnable {
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final SocketIOSession session;
+	private final WebSocket.FrameConnection connection;
+	private final byte pingOpcode;
+	private final Executor writerStage;
+	private final long interval;
+	private final long timeout;
+	private volatile long lastActivity = System.currentTimeMillis();
+	// When the outstanding ping was sent, or 0 if there is none.
+	private volatile long pingSent = 0;
+	private volatile boolean stopped = false;
+	private SocketIOSession.SessionTask task = null;
+	private final Runnable pinger = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				connection.sendControl(pingOpcode, NO_DATA, 0, 0);
+			} catch (IOException e) {
+				Log.debug("Session["+session.getSessionId()+"]: ping failed: " + e);
+				connection.disconnect();
+			}
+		}
+	};
+
+	/**
+	 * @return The opcode of ping frames on connection, or -1 if its protocol version has none.
+	 */
+	static byte pingOpcode(WebSocket.Connection connection) {
+		if (connection instanceof WebSocket.FrameConnection) {
+			WebSocket.FrameConnection frames = (WebSocket.FrameConnection)connection;
+			for (byte op = 0; op < 0x10; op++) {
+				if (frames.isPing(op)) {
+					return op;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pingOpcode As returned by {@link #pingOpcode(WebSocket.Connection)}.
+	 * @param writerStage Sends the pings, so a stalled connection doesn't hold up the session timers.
+	 * @param interval Milliseconds without inbound traffic before pinging.
+	 * @param timeout Milliseconds to wait for traffic after a ping before giving up on the peer.
+	 */
+	WebSocketHeartbeat(SocketIOSession session, WebSocket.Connection connection, byte pingOpcode,
+			Executor writerStage, long interval, long timeout) {
+		this.session = session;
+		this.connection = (WebSocket.FrameConnection)connection;
+		this.pingOpcode = pingOpcode;
+		this.writerStage = writerStage;
+		this.interval = interval;
+		this.timeout = timeout;
+	}
+
+	void start() {
+		lastActivity = System.currentTimeMillis();
+		schedule(interval);
+	}
+
+	void stop() {
+		stopped = true;
+		synchronized (this) {
+			if (task != null) {
+				task.cancel();
+				task = null;
+			}
+		}
+	}
+
+	/**
+	 * Record inbound traffic.
+	 */
+	void onActivity() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	@Override
+	public void run() {
+		if (stopped) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long last = lastActivity;
+		long sent = pingSent;
+		if (sent != 0 && last < sent) {
+			if (now - sent >= timeout) {
+				Log.debug("Session["+session.getSessionId()+"]: no answer to ping in " + (now - sent) + "ms");
+				stopped = true;
+				session.onDisconnect(DisconnectReason.TIMEOUT);
+				session.getTransportHandler().abort();
+				return;
+			}
+			schedule(sent + timeout - now);
+			return;
+		}
+		pingSent = 0;
+		long idle = now - last;
+		if (idle < interval) {
+			schedule(interval - idle);
+			return;
+		}
+		pingSent = now;
+		try {
+			writerStage.execute(pinger);
+		} catch (RejectedExecutionException e) {
+			// The transport is being destroyed.
+			return;
+		}
+		schedule(timeout);
+	}
+
+	private void schedule(long delay) {
+		synchronized (this) {
+			if (!stopped) {
+				task = session.scheduleTask(this, delay);
+			}
+		}
+	}
+}
@@ -0,0 +1,502 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.websocket.WebSocket;
+
+import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.OutboundMemoryAccountant;
+import com.glines.socketio.server.SocketIOBufferFullException;
+import com.glines.socketio.server.SocketIOClosedException;
+import com.glines.socketio.server.SocketIOOutbound;
+import com.glines.socketio.server.SocketIOSession;
+
+/**
+ * Per-connection outbound queue. Producers only queue frames, the blocking writes to the
+ * connection are done by a shared writer stage, so a slow client never holds up the thread
+ * sending to it. The frames queued in a burst are written as one WebSocket message, relying
+ * on several encoded frames being allowed in a single message.
+ * <p>
+ * At most one writer task per connection is queued or running at a time. A write that
+ * takes longer than the write timeout calls the queue's stall handler, which is expected to
+ * close the connection so that the write fails and the writer thread is released. With a flush
+ * deadline, frames are also held back for up to that long to let a burst build up, unless
+ * maxMessageSize worth is already queued.
+ * <p>
+ * The queue is bounded in bytes (UTF-8 for text). Above 3/4 of the bound the connection
+ * reports itself as not writable until it drains below 1/4, and frames that do not fit at
+ * all are handled according to the transport's {@link OverflowPolicy}. A frame larger than
+ * the bound is accepted once the queue is empty, so that it is written on its own rather
+ * than refused outright.
+ * <p>
+ * A connection is either text or binary: queued frames are all Strings or all byte arrays.
+ */
+class WebSocketSendQueue {
+	private static final class Entry {
+		Object frame;
+		int size;
+		final boolean isData;
+		final String key;
+		SocketIOOutbound.SendCallback callback;
+
+		Entry(Object frame, int size, boolean isData, String key, SocketIOOutbound.SendCallback callback) {
+			this.frame = frame;
+			this.size = size;
+			this.isData = isData;
+			this.key = key;
+			this.callback = callback;
+		}
+	}
+
+	private final WebSocket.Connection connection;
+	private final Executor writerStage;
+	private final int maxMessageSize;
+	private final long flushDeadline;
+	private final FlushScheduler scheduler;
+	private final int limit;
+	private final OverflowPolicy policy;
+	private final long maxBlockTime;
+	private final WritabilityMonitor writability;
+	private final OutboundMemoryAccountant.Account account;
+	private final SocketIOSession session;
+	private final long writeTimeout;
+	private final Runnable onStalled;
+	// Guarded by this.
+	private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+	private final Map<String, Entry> keyed = new HashMap<String, Entry>();
+	private int queuedBytes = 0;
+	private boolean writing = false;
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+	// Only used by the writer task.
+	private final List<Entry> batch = new ArrayList<Entry>();
+	private final Runnable writer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	private final Runnable flusher = new Runnable() {
+		@Override
+		public void run() {
+			boolean submit;
+			synchronized (WebSocketSendQueue.this) {
+				flushScheduled = false;
+				submit = startWriter();
+			}
+			if (submit) {
+				submitWriter();
+			}
+		}
+	};
+
+	/**
+	 * @param writerStage Runs the writes to the connection.
+	 * @param maxMessageSize Largest message, in bytes, that queued frames are coalesced into.
+	 * @param flushDeadline Milliseconds to hold frames back, or 0 to write as soon as possible.
+	 * @param scheduler Runs delayed flushes, may be null if flushDeadline is 0.
+	 * @param limit Most bytes that may be queued.
+	 * @param maxBlockTime How long the BLOCK policy waits for room, in milliseconds.
+	 * @param account Where queued bytes are accounted for, or null.
+	 * @param session Schedules the write timeouts.
+	 * @param writeTimeout Milliseconds a write may take before onStalled is called, or 0 for no limit.
+	 * @param onStalled Called on the session's timer thread when a write times out, must not block.
+	 */
+	WebSocketSendQueue(WebSocket.Connection connection, Executor writerStage, int maxMessageSize,
+			long flushDeadline, FlushScheduler scheduler, int limit, OverflowPolicy policy,
+			long maxBlockTime, WritabilityMonitor writability, OutboundMemoryAccountant.Account account,
+			SocketIOSession session, long writeTimeout, Runnable onStalled) {
+		this.connection = connection;
+		this.writerStage = writerStage;
+		this.maxMessageSize = maxMessageSize;
+		this.flushDeadline = scheduler == null ? 0 : flushDeadline;
+		this.scheduler = scheduler;
+		this.limit = limit;
+		this.policy = policy;
+		this.maxBlockTime = maxBlockTime;
+		this.writability = writability;
+		this.account = account;
+		this.session = session;
+		this.writeTimeout = writeTimeout;
+		this.onStalled = onStalled;
+	}
+
+	boolean isWritable() {
+		return writability.isWritable();
+	}
+
+	/**
+	 * @param isData True for application messages, which are the only ones the overflow
+	 *        policy may drop.
+	 * @param conflationKey Replace the queued frame with this key, or null.
+	 * @param immediate Write now even if there is a flush deadline.
+	 * @param callback Told when the frame has been written or discarded, may be null.
+	 * @return false if the frame did not fit and the connection must be disconnected.
+	 * @throws SocketIOBufferFullException If the frame did not fit and the policy is FAIL_FAST.
+	 * @throws SocketIOClosedException If the queue has been closed.
+	 */
+	boolean send(String frame, boolean isData, String conflationKey, boolean immediate,
+			SocketIOOutbound.SendCallback callback) throws SocketIOBufferFullException, SocketIOClosedException {
+		return enqueue(new Entry(frame, OutboundMemoryAccountant.utf8Length(frame), isData, conflationKey, callback),
+				immediate);
+	}
+
+	/**
+	 * @see #send(String, boolean, String, boolean, SocketIOOutbound.SendCallback)
+	 */
+	boolean send(byte[] frame, boolean isData, String conflationKey, boolean immediate,
+			SocketIOOutbound.SendCallback callback) throws SocketIOBufferFullException, SocketIOClosedException {
+		return enqueue(new Entry(frame, frame.length, isData, conflationKey, callback), immediate);
+	}
+
+	private boolean enqueue(Entry entry, boolean immediate)
+			throws SocketIOBufferFullException, SocketIOClosedException {
+		List<Entry> dropped = null;
+		SocketIOOutbound.SendCallback superseded = null;
+		boolean submit = false;
+		boolean schedule = false;
+		synchronized (this) {
+			if (closed) {
+				throw new SocketIOClosedException();
+			}
+			Entry previous = entry.key == null ? null : keyed.get(entry.key);
+			if (previous != null) {
+				// Take over the queued frame's place, the frame it held is superseded.
+				superseded = previous.callback;
+				adjust(entry.size - previous.size);
+				previous.frame = entry.frame;
+				previous.size = entry.size;
+				previous.callback = entry.callback;
+			} else {
+				if (!fits(entry.size)) {
+					switch (policy) {
+					case BLOCK:
+						if (entry.callback == null) {
+							if (!awaitRoom(entry.size)) {
+								return false;
+							}
+							break;
+						}
+						// Asynchronous sends never wait, the callback is told the frame didn't fit.
+						dropped = new ArrayList<Entry>(1);
+						dropped.add(entry);
+						entry = null;
+						break;
+					case FAIL_FAST:
+						throw new SocketIOBufferFullException("Outbound queue full");
+					case DROP_OLDEST:
+					case CONFLATE:
+						dropped = makeRoom(entry.size, policy == OverflowPolicy.CONFLATE);
+						if (!fits(entry.size)) {
+							// The frame can't fit even with the frames the policy allows dropped.
+							dropped = drop(entry, dropped);
+							entry = null;
+						}
+						break;
+					case DROP_NEWEST:
+						dropped = drop(entry, dropped);
+						entry = null;
+						break;
+					default:
+						return false;
+					}
+				}
+				if (entry != null) {
+					queue.addLast(entry);
+					if (entry.key != null) {
+						keyed.put(entry.key, entry);
+					}
+					adjust(entry.size);
+				}
+			}
+			if (!writing && !queue.isEmpty()) {
+				if (immediate || flushDeadline == 0 || queuedBytes >= maxMessageSize) {
+					submit = startWriter();
+				} else if (!flushScheduled) {
+					flushScheduled = true;
+					schedule = true;
+				}
+			}
+		}
+		complete(superseded, new SocketIOException("Superseded by a newer message with the same conflation key"));
+		if (dropped != null) {
+			fail(dropped, new SocketIOBufferFullException("Frame dropped from full outbound queue"));
+		}
+		if (submit) {
+			submitWriter();
+		} else if (schedule) {
+			scheduler.schedule(flusher, flushDeadline);
+		}
+		return true;
+	}
+
+	/**
+	 * Must be called while holding this queue's lock.
+	 * @return true if a frame of size bytes may be queued now.
+	 */
+	private boolean fits(int size) {
+		return queuedBytes == 0 || queuedBytes + size <= limit;
+	}
+
+	/**
+	 * Wait up to maxBlockTime for size bytes to fit. Waits on this queue's monitor, which
+	 * the writer notifies whenever it takes frames off the queue.
+	 */
+	private boolean awaitRoom(int size) throws SocketIOClosedException {
+		long deadline = System.currentTimeMillis() + maxBlockTime;
+		while (!fits(size)) {
+			if (closed) {
+				throw new SocketIOClosedException();
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			if (!writing && startWriter()) {
+				// Nobody else is going to empty the queue while we wait.
+				submitWriter();
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		if (closed) {
+			throw new SocketIOClosedException();
+		}
+		return true;
+	}
+
+	private static List<Entry> drop(Entry entry, List<Entry> dropped) {
+		Log.debug("Outbound queue full, dropped frame: " + entry.frame);
+		if (dropped == null) {
+			dropped = new ArrayList<Entry>(1);
+		}
+		dropped.add(entry);
+		return dropped;
+	}
+
+	/**
+	 * Remove the oldest data frames until size bytes fit. Control frames are always kept.
+	 * @param keyedOnly Only remove frames that were sent with a conflation key.
+	 */
+	private List<Entry> makeRoom(int size, boolean keyedOnly) {
+		List<Entry> dropped = new ArrayList<Entry>();
+		int freed = 0;
+		for (Iterator<Entry> it = queue.iterator(); it.hasNext(); ) {
+			if (queuedBytes == freed || queuedBytes - freed + size <= limit) {
+				break;
+			}
+			Entry e = it.next();
+			if (e.isData && (!keyedOnly || e.key != null)) {
+				it.remove();
+				if (e.key != null) {
+					keyed.remove(e.key);
+				}
+				freed += e.size;
+				dropped.add(e);
+			}
+		}
+		adjust(-freed);
+		return dropped;
+	}
+
+	/**
+	 * Must be called while holding this queue's lock.
+	 */
+	private void adjust(int delta) {
+		queuedBytes += delta;
+		if (account != null && delta != 0) {
+			if (delta > 0) {
+				account.allocate(delta);
+			} else {
+				account.release(-delta);
+			}
+		}
+		writability.update(queuedBytes);
+	}
+
+	/**
+	 * Must be called while holding this queue's lock.
+	 * @return true if the caller must submit the writer task.
+	 */
+	private boolean startWriter() {
+		if (writing || closed || queue.isEmpty()) {
+			return false;
+		}
+		writing = true;
+		return true;
+	}
+
+	private void submitWriter() {
+		try {
+			writerStage.execute(writer);
+		} catch (RejectedExecutionException e) {
+			// The transport is being destroyed.
+			close(new SocketIOClosedException("Writer stage stopped"));
+		}
+	}
+
+	/**
+	 * The writer task. Writes until the queue is empty, then lets the next frame start a new task.
+	 */
+	private void drain() {
+		for (;;) {
+			int size = 0;
+			synchronized (this) {
+				if (closed || queue.isEmpty()) {
+					writing = false;
+					return;
+				}
+				Entry first = queue.pollFirst();
+				batch.add(first);
+				size = first.size;
+				Entry next;
+				while ((next = queue.peekFirst()) != null && size + next.size <= maxMessageSize) {
+					batch.add(queue.pollFirst());
+					size += next.size;
+				}
+				for (Entry e: batch) {
+					if (e.key != null) {
+						keyed.remove(e.key);
+					}
+				}
+				adjust(-size);
+				notifyAll();
+			}
+			SocketIOSession.SessionTask watchdog = writeTimeout > 0 ?
+					session.scheduleTask(onStalled, writeTimeout) : null;
+			try {
+				write(size);
+			} catch (IOException e) {
+				Log.debug("Websocket write failed: " + e);
+				List<Entry> failed = new ArrayList<Entry>(batch);
+				batch.clear();
+				fail(failed, e);
+				synchronized (this) {
+					writing = false;
+				}
+				close(e);
+				connection.disconnect();
+				return;
+			} finally {
+				if (watchdog != null) {
+					watchdog.cancel();
+				}
+			}
+			if (scheduler != null) {
+				scheduler.recordBatch(batch.size());
+			}
+			for (Entry e: batch) {
+				complete(e.callback, null);
+			}
+			batch.clear();
+		}
+	}
+
+	private void write(int size) throws IOException {
+		Object first = batch.get(0).frame;
+		if (first instanceof String) {
+			String message;
+			if (batch.size() == 1) {
+				message = (String)first;
+			} else {
+				StringBuilder sb = new StringBuilder(size);
+				for (Entry e: batch) {
+					sb.append((String)e.frame);
+				}
+				message = sb.toString();
+			}
+			connection.sendMessage(message);
+		} else {
+			byte[] bytes;
+			if (batch.size() == 1) {
+				bytes = (byte[])first;
+			} else {
+				bytes = new byte[size];
+				int pos = 0;
+				for (Entry e: batch) {
+					byte[] b = (byte[])e.frame;
+					System.arraycopy(b, 0, bytes, pos, b.length);
+					pos += b.length;
+				}
+			}
+			connection.sendMessage(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Discard everything queued, failing its callbacks with cause, and refuse further frames.
+	 */
+	void close(Throwable cause) {
+		List<Entry> failed;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			failed = new ArrayList<Entry>(queue);
+			queue.clear();
+			keyed.clear();
+			queuedBytes = 0;
+			if (account != null) {
+				account.close();
+			}
+			notifyAll();
+		}
+		fail(failed, cause);
+	}
+
+	private static void fail(List<Entry> entries, Throwable cause) {
+		for (Entry e: entries) {
+			complete(e.callback, cause);
+		}
+	}
+
+	private static void complete(SocketIOOutbound.SendCallback callback, Throwable cause) {
+		if (callback == null) {
+			return;
+		}
+		try {
+			if (cause == null) {
+				callback.onSent();
+			} else {
+				callback.onFailed(cause);
+			}
+		} catch (RuntimeException e) {
+			Log.warn("Send callback failed", e);
+		}
+	}
+}
@@ -24,12 +24,20 @@ package com.glines.socketio.server.transport;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.client.HttpConnection;
+import org.eclipse.jetty.io.AbstractConnection;
+import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocketFactory;
@@ -37,17 +45,70 @@ import org.eclipse.jetty.websocket.WebSocketFactory;
 import com.glines.socketio.common.ConnectionState;
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.BinaryFrameCodec;
+import com.glines.socketio.server.OutboundMemoryAccountant;
 import com.glines.socketio.server.SocketIOClosedException;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOMessage;
 import com.glines.socketio.server.SocketIOSession;
 import com.glines.socketio.server.Transport;
 
 public class WebSocketTransport extends AbstractTransport implements WebSocketFactory.Acceptor {
 	public static final String TRANSPORT_NAME = "websocket";
 	public static final long CONNECTION_TIMEOUT = 10*1000;
+	/**
+	 * Set to "true" to let clients ask for binary framing by opening with {@link #OPEN_BINARY}.
+	 */
+	public static final String BINARY_FRAMING_KEY = "binaryFraming";
+	/**
+	 * Set to "true" to check liveness with WebSocket ping control frames, sent only after a
+	 * heartbeat interval without inbound traffic, instead of Socket.IO PING frames. Browsers
+	 * answer pings without telling the page, so this is only suitable for clients that do not
+	 * expect a frame from the server every heartbeat interval, which the bundled socket.io.js
+	 * does. Connections whose protocol draft has no ping frame keep using PING frames.
+	 */
+	public static final String NATIVE_PING_KEY = "nativePing";
+	/**
+	 * Largest message that queued frames are coalesced into. Defaults to the buffer size.
+	 */
+	public static final String COALESCE_MAX_SIZE_KEY = "coalesceMaxSize";
+	/**
+	 * Milliseconds to hold frames back so more can be coalesced into one message. 0, the
+	 * default, only coalesces frames queued while a write is in progress.
+	 */
+	public static final String COALESCE_DEADLINE_KEY = "coalesceDeadline";
+	/**
+	 * Most bytes that may be queued for one connection. Defaults to the buffer size.
+	 */
+	public static final String SEND_QUEUE_SIZE_KEY = "sendQueueSize";
+	/**
+	 * Number of threads writing queued messages to connections. A client that stops reading
+	 * ties up a writer thread for up to writeTimeout, so this should exceed the number of
+	 * stalled clients expected at once: while every writer is stalled, output to all other
+	 * connections waits too. Defaults to twice the number of processors.
+	 */
+	public static final String WRITER_THREADS_KEY = "writerThreads";
+	/**
+	 * Milliseconds a single write may block a writer thread before the connection is closed
+	 * to release it. Defaults to 10 seconds; 0 leaves writes bounded only by maxIdleTime.
+	 */
+	public static final String WRITE_TIMEOUT_KEY = "writeTimeout";
+	public static final long WRITE_TIMEOUT_DEFAULT = 10*1000;
+	public static final String OPEN = "OPEN";
+	// Request attribute where Jetty leaves the connection that took over an upgraded request.
+	private static final String JETTY_CONNECTION_ATTRIBUTE = "org.eclipse.jetty.io.Connection";
+	public static final String OPEN_BINARY = "OPEN:binary";
 	private final WebSocketFactory wsFactory;
 	private final long maxIdleTime;
+	private final int bufferSize;
+	private boolean binaryFraming = false;
+	private boolean nativePing = false;
+	private int coalesceMaxSize;
+	private long coalesceDeadline = 0;
+	private int sendQueueSize;
+	private ExecutorService writerStage = null;
+	private long writeTimeout = WRITE_TIMEOUT_DEFAULT;
 
   @Override
   public WebSocket doWebSocketConnect(HttpServletRequest httpServletRequest, String s) {
@@ -62,13 +123,55 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
     return origin;
   }
 
-  private class SessionWrapper implements WebSocket.OnTextMessage, SocketIOSession.SessionTransportHandler {
+  private class SessionWrapper implements WebSocket.OnTextMessage, WebSocket.OnBinaryMessage,
+  		WebSocket.OnControl, SocketIOSession.SessionTransportHandler, OutboundMemoryAccountant.Sheddable {
 		private final SocketIOSession session;
-		private Connection outbound = null;
+		private final SessionFrameDispatcher dispatcher;
+		private final BinaryFrameCodec.FrameVisitor binaryDispatcher = new BinaryFrameCodec.FrameVisitor() {
+			@Override
+			public boolean onFrame(SocketIOFrame.FrameType frameType, int messageType, boolean isBinary,
+					byte[] buf, int offset, int length) {
+				if (!isBinary) {
+					session.onMessage(new SocketIOFrame(frameType, messageType,
+							new String(buf, offset, length, BinaryFrameCodec.UTF_8)));
+				} else if (frameType == SocketIOFrame.FrameType.DATA) {
+					session.onBinaryMessage(messageType, ByteBuffer.wrap(buf, offset, length).slice());
+				}
+				return true;
+			}
+		};
+		// Kept after abort(), so late senders see a closed connection rather than null.
+		private volatile Connection outbound = null;
+		private final AtomicBoolean aborted = new AtomicBoolean();
+		// The connection's endpoint, closed to abort a stalled write. Null if Jetty didn't expose it.
+		private volatile EndPoint endPoint = null;
+		private final Runnable onStalled = new Runnable() {
+			@Override
+			public void run() {
+				EndPoint endp = endPoint;
+				Log.debug("Session["+session.getSessionId()+"]: write timed out, closing the connection");
+				if (endp != null) {
+					try {
+						endp.close();
+					} catch (IOException e) {
+						Log.ignore(e);
+					}
+				}
+			}
+		};
+		private final WritabilityMonitor writability;
+		private final OutboundMemoryAccountant.Account account;
+		private volatile WebSocketSendQueue sender = null;
 		private boolean initiated = false;
+		private volatile boolean binary = false;
+		private WebSocketHeartbeat heartbeat = null;
 
 		SessionWrapper(SocketIOSession session) {
 			this.session = session;
+			this.dispatcher = new SessionFrameDispatcher(session);
+			this.writability = new WritabilityMonitor(session, sendQueueSize);
+			OutboundMemoryAccountant accountant = session.getOutboundMemoryAccountant();
+			this.account = accountant == null ? null : accountant.newAccount(this);
       session.setHeartbeat(maxIdleTime/2);
       session.setTimeout(CONNECTION_TIMEOUT);
 		}
@@ -80,6 +183,20 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
 		@Override
 		public void onOpen(final Connection outbound) {
 			this.outbound = outbound;
+			FlushScheduler flushScheduler = coalesceDeadline > 0 ? getFlushScheduler() : null;
+			this.sender = new WebSocketSendQueue(outbound, writerStage, coalesceMaxSize, coalesceDeadline,
+					flushScheduler, sendQueueSize, getOverflowPolicy(), maxIdleTime, writability, account,
+					session, writeTimeout, onStalled);
+			if (binaryFraming) {
+				outbound.setMaxBinaryMessageSize(bufferSize);
+			}
+			if (nativePing) {
+				byte opcode = WebSocketHeartbeat.pingOpcode(outbound);
+				if (opcode >= 0) {
+					heartbeat = new WebSocketHeartbeat(session, outbound, opcode, writerStage,
+							session.getHeartbeat(), session.getTimeout());
+				}
+			}
 		}
 
         /*
@@ -88,6 +205,10 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
            */
 		@Override
 		public void onClose(int code, String reason) {
+			if (heartbeat != null) {
+				heartbeat.stop();
+			}
+			sender.close(new SocketIOClosedException());
 			session.onShutdown();
 		}
 
@@ -98,7 +219,18 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
 		@Override
 		public void disconnect() {
 			session.onDisconnect(DisconnectReason.DISCONNECT);
-			outbound.disconnect();
+			Connection outbound = this.outbound;
+			if (outbound != null) {
+				outbound.disconnect();
+			}
+		}
+
+		/**
+		 * @return true if the connection is open and the session hasn't been aborted.
+		 */
+		private boolean isOpen() {
+			Connection outbound = this.outbound;
+			return outbound != null && outbound.isOpen() && !aborted.get();
 		}
 
 		@Override
@@ -106,25 +238,62 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
 			session.startClose();
 		}
 
+		@Override
+		public String getSessionId() {
+			return session.getSessionId();
+		}
+
 		@Override
 		public ConnectionState getConnectionState() {
 			return session.getConnectionState();
 		}
 
+		@Override
+		public boolean isWritable() {
+			return writability.isWritable();
+		}
+
+		@Override
+		public boolean isBinary() {
+			return binary;
+		}
+
 		@Override
 		public void sendMessage(SocketIOFrame frame) throws SocketIOException {
-			if (outbound.isOpen()) {
+			queueFrame(frame, null);
+		}
+
+		/**
+		 * Queue frame for the writer stage, throttling application messages first if the
+		 * outbound memory budget asks for it.
+		 */
+		private void queueFrame(SocketIOFrame frame, String conflationKey) throws SocketIOException {
+			if (isOpen()) {
 				Log.debug("Session["+session.getSessionId()+"]: sendMessage: [" + frame.getFrameType() + "]: " + frame.getData());
-				try {
-					outbound.sendMessage(frame.encode());
-				} catch (IOException e) {
-					outbound.disconnect();
-					throw new SocketIOException(e);
+				boolean isData = frame.getFrameType() == SocketIOFrame.FrameType.DATA;
+				if (isData && account != null && !awaitCapacity(session, this, account, maxIdleTime)) {
+					return;
+				}
+				boolean queued;
+				if (binary) {
+					queued = sender.send(frame.encodeBinary(), isData, conflationKey, false, null);
+				} else {
+					queued = sender.send(frame.encode(), isData, conflationKey, false, null);
+				}
+				if (!queued) {
+					disconnectSlowConsumer();
 				}
 			} else {
 				throw new SocketIOClosedException();
 			}
 		}
+
+		private void disconnectSlowConsumer() throws SocketIOClosedException {
+			Log.debug("Session["+session.getSessionId()+"]: outbound queue full, disconnecting");
+			session.onDisconnect(DisconnectReason.TIMEOUT);
+			abort();
+			throw new SocketIOClosedException("Outbound queue full");
+		}
 		
 		
 		/*
@@ -139,13 +308,83 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
 		@Override
 		public void sendMessage(int messageType, String message)
 				throws SocketIOException {
-			if (outbound.isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
+			if (isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
 				sendMessage(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message));
 			} else {
 				throw new SocketIOClosedException();
 			}
 		}
 
+		@Override
+		public void sendMessage(int messageType, String message, String conflationKey)
+				throws SocketIOException {
+			if (isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
+				queueFrame(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message), conflationKey);
+			} else {
+				throw new SocketIOClosedException();
+			}
+		}
+
+		@Override
+		public void sendMessage(int messageType, byte[] data) throws SocketIOException {
+			sendMessage(messageType, ByteBuffer.wrap(data));
+		}
+
+		@Override
+		public void sendMessage(int messageType, ByteBuffer data) throws SocketIOException {
+			if (isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
+				if (!binary) {
+					throw new SocketIOException("Binary framing was not negotiated");
+				}
+				byte[] bytes = BinaryFrameCodec.encode(SocketIOFrame.FrameType.DATA, messageType, data);
+				if (account != null && !awaitCapacity(session, this, account, maxIdleTime)) {
+					return;
+				}
+				if (!sender.send(bytes, true, null, false, null)) {
+					disconnectSlowConsumer();
+				}
+			} else {
+				throw new SocketIOClosedException();
+			}
+		}
+
+		@Override
+		public void sendMessage(SocketIOMessage message) throws SocketIOException {
+			if (isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
+				sendMessage(message.getFrame());
+			} else {
+				throw new SocketIOClosedException();
+			}
+		}
+
+		@Override
+		public void sendMessage(SocketIOMessage message, SendCallback callback) {
+			if (!isOpen() || session.getConnectionState() != ConnectionState.CONNECTED) {
+				callback.onFailed(new SocketIOClosedException());
+				return;
+			}
+			SocketIOFrame frame = message.getFrame();
+			boolean queued;
+			try {
+				if (binary) {
+					queued = sender.send(frame.encodeBinary(), true, null, false, callback);
+				} else {
+					queued = sender.send(frame.encode(), true, null, false, callback);
+				}
+			} catch (SocketIOException e) {
+				callback.onFailed(e);
+				return;
+			}
+			if (!queued) {
+				// Only the DISCONNECT policy gets here, BLOCK fails the callback instead of waiting.
+				try {
+					disconnectSlowConsumer();
+				} catch (SocketIOClosedException e) {
+					callback.onFailed(e);
+				}
+			}
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * @see com.glines.socketio.SocketIOSession.SessionTransportHandler#handle(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.glines.socketio.SocketIOSession)
@@ -163,22 +402,49 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
 
 		@Override
 		public void abort() {
-			outbound.disconnect();
-			outbound = null;
+			if (!aborted.compareAndSet(false, true)) {
+				return;
+			}
+			if (heartbeat != null) {
+				heartbeat.stop();
+			}
+			if (sender != null) {
+				sender.close(new SocketIOClosedException());
+			}
+			Connection outbound = this.outbound;
+			if (outbound != null) {
+				outbound.disconnect();
+			}
 			session.onShutdown();
 		}
 
+		@Override
+		public void shed() {
+			if (account.getBytes() == 0) {
+				// Nothing queued, or already aborted.
+				return;
+			}
+			Log.info("Session["+session.getSessionId()+"]: shedding " + account.getBytes() +
+					" bytes to stay within the outbound memory budget");
+			session.onDisconnect(DisconnectReason.TIMEOUT);
+			abort();
+		}
+
     @Override
     public void onMessage(String message) {
-      session.startHeartbeatTimer();
+      onActivity();
 			if (!initiated) {
-				if ("OPEN".equals(message)) {
+				if (OPEN.equals(message) || OPEN_BINARY.equals(message)) {
+					// A client that asks for binary framing and gets text frames back knows it was refused.
+					binary = binaryFraming && OPEN_BINARY.equals(message);
 					try {
-						outbound.sendMessage(SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId()));
-						outbound.sendMessage(SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, "" + session.getHeartbeat()));
+						sendHandshake();
 						session.onConnect(this);
 						initiated = true;
-					} catch (IOException e) {
+						if (heartbeat != null) {
+							heartbeat.start();
+						}
+					} catch (SocketIOException e) {
 						outbound.disconnect();
 						session.onShutdown();
 					}
@@ -187,21 +453,121 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
 					session.onShutdown();
 				}
 			} else {
-				List<SocketIOFrame> messages = SocketIOFrame.parse(message);
-
-				for (SocketIOFrame msg: messages) {
-					session.onMessage(msg);
-				}
+				SocketIOFrame.parse(message, dispatcher);
 			}
     }
+
+		@Override
+		public void onMessage(byte[] data, int offset, int length) {
+			onActivity();
+			if (!initiated || !binary) {
+				Log.debug("Session["+session.getSessionId()+"]: unexpected binary message");
+				outbound.disconnect();
+				session.onShutdown();
+				return;
+			}
+			try {
+				BinaryFrameCodec.decode(data, offset, length, binaryDispatcher);
+			} catch (IllegalArgumentException e) {
+				Log.debug("Session["+session.getSessionId()+"]: bad binary message: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public boolean onControl(byte controlCode, byte[] data, int offset, int length) {
+			if (heartbeat != null) {
+				heartbeat.onActivity();
+			}
+			// Let Jetty answer pings and closes as usual.
+			return false;
+		}
+
+		private void onActivity() {
+			if (heartbeat != null) {
+				heartbeat.onActivity();
+			} else {
+				session.startHeartbeatTimer();
+			}
+		}
+
+		/**
+		 * Send the session id and heartbeat interval together in one message.
+		 * @throws SocketIOClosedException If the handshake could not be queued.
+		 */
+		private void sendHandshake() throws SocketIOException {
+			String heartbeat = "" + session.getHeartbeat();
+			boolean queued;
+			if (binary) {
+				byte[] id = BinaryFrameCodec.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId());
+				byte[] hb = BinaryFrameCodec.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, heartbeat);
+				byte[] bytes = new byte[id.length + hb.length];
+				System.arraycopy(id, 0, bytes, 0, id.length);
+				System.arraycopy(hb, 0, bytes, id.length, hb.length);
+				queued = sender.send(bytes, false, null, true, null);
+			} else {
+				queued = sender.send(SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId()) +
+						SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, heartbeat), false, null, true, null);
+			}
+			if (!queued) {
+				throw new SocketIOClosedException("Handshake could not be queued");
+			}
+		}
   }
 
 	public WebSocketTransport(int bufferSize, int maxIdleTime) {
 		wsFactory = new WebSocketFactory(this, bufferSize);
 		wsFactory.setMaxIdleTime(maxIdleTime);
 		this.maxIdleTime = maxIdleTime;
+		this.bufferSize = bufferSize;
+		this.coalesceMaxSize = bufferSize;
+		this.sendQueueSize = bufferSize;
+	}
+
+	@Override
+	public void init(ServletConfig config) {
+		super.init(config);
+		binaryFraming = Boolean.parseBoolean(config.getInitParameter(BINARY_FRAMING_KEY));
+		nativePing = Boolean.parseBoolean(config.getInitParameter(NATIVE_PING_KEY));
+		String str = config.getInitParameter(COALESCE_MAX_SIZE_KEY);
+		if (str != null) {
+			coalesceMaxSize = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(COALESCE_DEADLINE_KEY);
+		if (str != null) {
+			coalesceDeadline = Long.parseLong(str);
+		}
+		str = config.getInitParameter(SEND_QUEUE_SIZE_KEY);
+		if (str != null) {
+			sendQueueSize = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(WRITE_TIMEOUT_KEY);
+		if (str != null) {
+			writeTimeout = Long.parseLong(str);
+		}
+		int writerThreads = Runtime.getRuntime().availableProcessors() * 2;
+		str = config.getInitParameter(WRITER_THREADS_KEY);
+		if (str != null) {
+			writerThreads = Integer.parseInt(str);
+		}
+		final AtomicInteger count = new AtomicInteger();
+		writerStage = Executors.newFixedThreadPool(writerThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SocketIO-WebSocketWriter-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
-	
+
+	@Override
+	public void destroy() {
+		if (writerStage != null) {
+			writerStage.shutdown();
+		}
+		super.destroy();
+	}
+
 	@Override
 	public String getName() {
 		return TRANSPORT_NAME;
@@ -257,6 +623,10 @@ public class WebSocketTransport extends AbstractTransport implements WebSocketFa
         }
 
         wsFactory.upgrade(request,response,wrapper,origin, protocol);
+        Object connection = request.getAttribute(JETTY_CONNECTION_ATTRIBUTE);
+        if (connection instanceof AbstractConnection) {
+            wrapper.endPoint = ((AbstractConnection)connection).getEndPoint();
+        }
       }
 		} else {
     		response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + TRANSPORT_NAME + " transport request");
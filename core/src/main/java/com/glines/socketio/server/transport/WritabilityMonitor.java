@@ -0,0 +1,68 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import com.glines.socketio.server.SocketIOSession;
+
+/**
+ * Tracks whether a session's outbound buffer is above its high water mark and tells the
+ * session whenever that changes. Updates must be serialized by the caller.
+ */
+class WritabilityMonitor {
+	private final SocketIOSession session;
+	private final int highWaterMark;
+	private final int lowWaterMark;
+	private volatile boolean writable = true;
+
+	/**
+	 * Uses 3/4 and 1/4 of bufferSize as the high and low water marks.
+	 */
+	WritabilityMonitor(SocketIOSession session, int bufferSize) {
+		this(session, bufferSize - bufferSize / 4, bufferSize / 4);
+	}
+
+	WritabilityMonitor(SocketIOSession session, int highWaterMark, int lowWaterMark) {
+		this.session = session;
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = lowWaterMark;
+	}
+
+	boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * @param buffered The amount of data currently buffered.
+	 */
+	void update(int buffered) {
+		if (writable) {
+			if (buffered > highWaterMark) {
+				writable = false;
+				session.onWritabilityChanged(false);
+			}
+		} else if (buffered <= lowWaterMark) {
+			writable = true;
+			session.onWritabilityChanged(true);
+		}
+	}
+}
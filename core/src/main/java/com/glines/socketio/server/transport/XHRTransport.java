@@ -24,9 +24,12 @@ package com.glines.socketio.server.transport;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -41,9 +44,12 @@ import org.eclipse.jetty.util.log.Log;
 import com.glines.socketio.common.ConnectionState;
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.OutboundMemoryAccountant;
+import com.glines.socketio.server.SocketIOBufferFullException;
 import com.glines.socketio.server.SocketIOClosedException;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOMessage;
 import com.glines.socketio.server.SocketIOSession;
 import com.glines.socketio.server.SocketIOSession.SessionTransportHandler;
 import com.glines.socketio.server.Transport;
@@ -51,20 +57,92 @@ import com.glines.socketio.server.Transport;
 public abstract class XHRTransport extends AbstractHttpTransport {
 	public static final String CONTINUATION_KEY =
 		"com.glines.socketio.server.transport.XHRTransport.Continuation";
+	/**
+	 * Buffer holding a session's messages between requests: "queue", the default, or "ring"
+	 * for a pre-sized lock-free ring that allocates nothing per message.
+	 */
+	public static final String BUFFER_TYPE_KEY = "transportBuffer";
+	public static final String BUFFER_TYPE_RING = "ring";
+	public static final String BUFFER_TYPE_QUEUE = "queue";
+	/**
+	 * Milliseconds to hold frames back so that a burst is written as one batch. 0, the
+	 * default, writes each frame as soon as a request is waiting for it.
+	 */
+	public static final String FLUSH_WINDOW_KEY = "flushWindow";
+	/**
+	 * Amount of held back data that causes an immediate write. Defaults to half the buffer size.
+	 */
+	public static final String FLUSH_WINDOW_SIZE_KEY = "flushWindowSize";
+	/**
+	 * Chars of recently written frames that each session retains, so that a client can
+	 * resume after losing a response or stream. 0, the default, disables resumption.
+	 * <p>
+	 * Every frame written to a session after its handshake gets the next sequence number,
+	 * starting at 1, so a client learns the sequence number of a frame by counting. A GET
+	 * that carries the {@link #RESUME_SEQ_PARAM} query parameter acknowledges every frame up to
+	 * that number and has the frames after it written again, ahead of anything new. A
+	 * persistent connection that drops is kept for the session timeout, buffering frames,
+	 * and such a GET moves it onto the new request. If the frames after the given number are
+	 * no longer retained, the session is disconnected and the GET gets a 404, so the client
+	 * knows to start over.
+	 */
+	public static final String RESUME_WINDOW_KEY = "resumeWindow";
+	/**
+	 * Query parameter holding the sequence number of the last frame the client received.
+	 */
+	public static final String RESUME_SEQ_PARAM = "seq";
 	private final int bufferSize;
 	private final int maxIdleTime;
+	private String bufferType = BUFFER_TYPE_QUEUE;
+	private long flushWindow = 0;
+	private int flushWindowSize;
+	private int resumeWindow = 0;
 
 	protected abstract class XHRSessionHelper
-			implements SessionTransportHandler, ContinuationListener {
+			implements SessionTransportHandler, ContinuationListener, OutboundMemoryAccountant.Sheddable {
 		protected final SocketIOSession session;
-		private final TransportBuffer buffer = new TransportBuffer(bufferSize);
+		private final SessionFrameDispatcher dispatcher;
+		// Dispatches each decoded frame under the session lock, so the body is read without it.
+		private final SocketIOFrame.FrameVisitor lockedDispatcher;
+		private final OutboundMemoryAccountant.Account account;
+		private final TransportBuffer buffer;
+		private final WritabilityMonitor writability;
 		private volatile boolean is_open = false;
 		private volatile Continuation continuation = null;
 		private final boolean isConnectionPersistant;
 		private boolean disconnectWhenEmpty = false;
+		// True while a thread is writing to the continuation's response outside the lock.
+		private boolean writing = false;
+		private boolean completeAfterWrite = false;
+		private ScheduledFuture<?> flushTask = null;
+		private final Runnable flusher = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		// Number of messages removed by the last drainBuffer().
+		private int drainedCount = 0;
+		// Null unless the session is resumable.
+		private final ReplayLog replayLog;
+		private long resumeAfter = 0;
 
 		XHRSessionHelper(SocketIOSession session, boolean isConnectionPersistant) {
 			this.session = session;
+			this.dispatcher = new SessionFrameDispatcher(session);
+			this.lockedDispatcher = new SocketIOFrame.FrameVisitor() {
+				@Override
+				public boolean onFrame(SocketIOFrame.FrameType frameType, int messageType, CharSequence data) {
+					synchronized (XHRSessionHelper.this.session) {
+						return dispatcher.onFrame(frameType, messageType, data);
+					}
+				}
+			};
+			OutboundMemoryAccountant accountant = session.getOutboundMemoryAccountant();
+			this.account = accountant == null ? null : accountant.newAccount(this);
+			this.buffer = newTransportBuffer(account);
+			this.replayLog = newReplayLog(account);
+			this.writability = new WritabilityMonitor(session, bufferSize);
 			this.isConnectionPersistant = isConnectionPersistant;
 			if (isConnectionPersistant) {
 				session.setHeartbeat(HEARTBEAT_DELAY);
@@ -79,7 +157,169 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 		protected abstract void writeData(ServletResponse response, String data) throws IOException;
 
 		protected abstract void finishSend(ServletResponse response) throws IOException;
+
+		/**
+		 * Write a single frame. Transports that wrap frames should override this to take
+		 * advantage of the encoding cached on the frame.
+		 */
+		protected void writeFrame(ServletResponse response, SocketIOFrame frame) throws IOException {
+			writeData(response, frame.encode());
+		}
 		
+		/**
+		 * @return The log of written output, or null if the session can't be resumed.
+		 */
+		ReplayLog getReplayLog() {
+			return replayLog;
+		}
+
+		/**
+		 * Record output that is about to be written, so it can be replayed if the client
+		 * resumes. Helpers that number their output in writeData log it there instead.
+		 */
+		void logWritten(String data) {
+			if (replayLog != null) {
+				replayLog.append(data);
+			}
+		}
+
+		/**
+		 * Must be called while holding this helper's lock.
+		 * @param extra Additional capacity to reserve in the returned builder.
+		 * @return The concatenation of all buffered messages, oldest first.
+		 */
+		private StringBuilder drainBuffer(int extra) {
+			final StringBuilder data = new StringBuilder(buffer.getAvailableBytes() + extra);
+			drainedCount = buffer.drainMessages(new TransportBuffer.MessageSink() {
+				@Override
+				public void onMessage(String message) {
+					data.append(message);
+					logWritten(message);
+				}
+			});
+			writability.update(buffer.getAvailableBytes());
+			// Wake producers waiting for room.
+			notifyAll();
+			return data;
+		}
+
+		/**
+		 * Buffer a frame until the next request, applying the overflow policy if it doesn't fit.
+		 * Must be called while holding this helper's lock.
+		 * @param conflationKey Replace the buffered frame with this key, or null.
+		 * @param wait Wait for room under the BLOCK policy, instead of giving up at once.
+		 * @return false if the frame was dropped.
+		 */
+		private boolean bufferFrame(SocketIOFrame frame, String conflationKey, boolean wait)
+				throws SocketIOException {
+			String data = frame.encode();
+			OverflowPolicy policy = getOverflowPolicy();
+			boolean buffered = true;
+			if (policy == OverflowPolicy.BLOCK && wait) {
+				if (awaitPut(data, conflationKey) == false) {
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					abort();
+					throw new SocketIOException();
+				}
+			} else if (!buffer.putMessage(data, conflationKey, 0)) {
+				switch (policy) {
+				case BLOCK:
+					buffered = false;
+					break;
+				case FAIL_FAST:
+					throw new SocketIOBufferFullException("Outbound buffer full");
+				case DROP_OLDEST:
+				case CONFLATE:
+					if (!makeRoom(data.length(), policy == OverflowPolicy.CONFLATE) ||
+							!buffer.putMessage(data, conflationKey, 0)) {
+						// The frame can't fit even with the frames the policy allows discarded.
+						dropFrame(data);
+						buffered = false;
+					}
+					break;
+				case DROP_NEWEST:
+					dropFrame(data);
+					buffered = false;
+					break;
+				default:
+					Log.debug("Session["+session.getSessionId()+"]: outbound buffer full, disconnecting");
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					abort();
+					throw new SocketIOClosedException("Outbound buffer full");
+				}
+			}
+			writability.update(buffer.getAvailableBytes());
+			return buffered;
+		}
+
+		/**
+		 * Put data in the buffer, waiting up to maxIdleTime for room. Waits on this helper's
+		 * monitor, releasing the lock so requests and the writer can drain the buffer meanwhile.
+		 * Must be called while holding this helper's lock.
+		 * @return false if there was no room in time.
+		 */
+		private boolean awaitPut(String data, String conflationKey) throws SocketIOException {
+			if (buffer.putMessage(data, conflationKey, 0)) {
+				return true;
+			}
+			if (data.length() > buffer.getBufferSize()) {
+				return false;
+			}
+			long deadline = System.currentTimeMillis() + maxIdleTime;
+			for (;;) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					return false;
+				}
+				if (!is_open) {
+					throw new SocketIOClosedException();
+				}
+				if (buffer.putMessage(data, conflationKey, 0)) {
+					return true;
+				}
+			}
+		}
+
+		private void dropFrame(String data) {
+			Log.debug("Session["+session.getSessionId()+"]: outbound buffer full, dropped frame: " + data);
+		}
+
+		/**
+		 * Discard buffered data frames, oldest first, until a frame of the given size fits,
+		 * both in bytes and in buffer slots. Other frame types are always kept, and so are the
+		 * positions and conflation keys of the frames that aren't discarded.
+		 * Must be called while holding this helper's lock.
+		 * @param keyedOnly Only discard frames that were sent with a conflation key.
+		 * @return false if size can't fit even after discarding.
+		 */
+		private boolean makeRoom(int size, final boolean keyedOnly) {
+			final int[] needed = {
+					buffer.getAvailableBytes() + size - buffer.getBufferSize(),
+					buffer.getMessageCount() + 1 - buffer.getCapacity()
+			};
+			if (needed[0] <= 0 && needed[1] <= 0) {
+				return true;
+			}
+			buffer.evictMessages(new TransportBuffer.MessageFilter() {
+				@Override
+				public boolean evict(String message, String conflationKey) {
+					if ((needed[0] <= 0 && needed[1] <= 0) || (keyedOnly && conflationKey == null) ||
+							SocketIOFrame.frameTypeOf(message) != SocketIOFrame.FrameType.DATA) {
+						return false;
+					}
+					needed[0] -= message.length();
+					needed[1]--;
+					return true;
+				}
+			});
+			return needed[0] <= 0 && needed[1] <= 0;
+		}
+
 		@Override
 		public void disconnect() {
 			synchronized (this) {
@@ -95,47 +335,196 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			}
 		}
 
+		@Override
+		public String getSessionId() {
+			return session.getSessionId();
+		}
+
 		@Override
 		public ConnectionState getConnectionState() {
 			return session.getConnectionState();
 		}
 
+		@Override
+		public boolean isWritable() {
+			return writability.isWritable();
+		}
+
+		@Override
+		public boolean isBinary() {
+			return false;
+		}
+
 		@Override
 		public void sendMessage(SocketIOFrame frame)
 				throws SocketIOException {
+			sendFrame(frame, null, false);
+		}
+
+		/**
+		 * @param conflationKey Replace the buffered frame with this key, or null.
+		 * @param isData True for application messages, which may only be sent while CONNECTED
+		 *        and are held back while the outbound memory budget is throttling producers.
+		 */
+		private void sendFrame(SocketIOFrame frame, String conflationKey, boolean isData)
+				throws SocketIOException {
+			if (isData && account != null) {
+				// Wait before taking the lock, so requests can still drain this session.
+				if (!awaitCapacity(session, this, account, maxIdleTime)) {
+					return;
+				}
+			}
+			Continuation cont;
+			String pending;
+			boolean complete;
 			synchronized (this) {
 				Log.debug("Session["+session.getSessionId()+"]: " +
 						"sendMessage(frame): [" + frame.getFrameType() + "]: " + frame.getData());
-				if (is_open) {
-					if (continuation != null) {
-						List<String> messages = buffer.drainMessages();
-						messages.add(frame.encode());
-						StringBuilder data = new StringBuilder();
-						for (String msg: messages) {
-							data.append(msg);
-						}
-						try {
-							writeData(continuation.getServletResponse(), data.toString());
-						} catch (IOException e) {
-							throw new SocketIOException(e);
+				if (isData && session.getConnectionState() != ConnectionState.CONNECTED) {
+					throw new SocketIOClosedException();
+				}
+				if (!is_open) {
+					throw new SocketIOClosedException();
+				}
+				if (continuation == null || writing) {
+					bufferFrame(frame, conflationKey, true);
+					return;
+				}
+				if (flushWindow > 0 && !continuation.isInitial()) {
+					bufferFrame(frame, conflationKey, true);
+					if (continuation == null || writing) {
+						// Changed while waiting for room, the frame will be written by others.
+						return;
+					}
+					if (buffer.getAvailableBytes() < flushWindowSize) {
+						if (flushTask == null) {
+							flushTask = getFlushScheduler().schedule(flusher, flushWindow);
 						}
-						if (!isConnectionPersistant && !continuation.isInitial()) {
-							Continuation cont = continuation;
-							continuation = null;
-							cont.complete();
-						} else {
-							session.startHeartbeatTimer();
+						return;
+					}
+					// Enough to be worth writing now.
+					if (flushTask != null) {
+						flushTask.cancel(false);
+						flushTask = null;
+					}
+					frame = null;
+				}
+				cont = continuation;
+				complete = startWrite();
+				pending = buffer.isEmpty() ? null : drainBuffer(0).toString();
+				if (frame == null) {
+					getFlushScheduler().recordBatch(drainedCount);
+				} else if (replayLog != null) {
+					logWritten(frame.encode());
+				}
+			}
+			write(cont, pending, frame, complete);
+		}
+
+		/**
+		 * Take the writer role. Must be called while holding this helper's lock, with a
+		 * continuation set and no other writer.
+		 * @return true if the response is to be completed after the write.
+		 */
+		private boolean startWrite() {
+			boolean complete = !isConnectionPersistant && !continuation.isInitial();
+			if (complete) {
+				continuation = null;
+			}
+			writing = true;
+			return complete;
+		}
+
+		/**
+		 * Write everything held back by the flush window as one batch.
+		 */
+		private void flush() {
+			Continuation cont;
+			String pending;
+			boolean complete;
+			synchronized (this) {
+				flushTask = null;
+				if (!is_open || continuation == null || writing || buffer.isEmpty()) {
+					// Closed, or the buffer will be drained by the next request or the writer.
+					return;
+				}
+				cont = continuation;
+				complete = startWrite();
+				pending = drainBuffer(0).toString();
+				getFlushScheduler().recordBatch(drainedCount);
+			}
+			try {
+				write(cont, pending, null, complete);
+			} catch (SocketIOException e) {
+				Log.debug("Session["+session.getSessionId()+"]: flush failed: " + e);
+				session.onDisconnect(DisconnectReason.ERROR);
+				abort();
+			}
+		}
+
+		/**
+		 * Write to the response without holding this helper's lock, so that only this thread
+		 * waits on a slow client. Frames sent meanwhile are buffered, and written by this
+		 * thread before it gives up the writer role.
+		 * @param pending Previously buffered data to write ahead of frame, or null.
+		 * @param frame The frame to write, or null to only write pending.
+		 * @param complete Complete the response after writing.
+		 */
+		private void write(Continuation cont, String pending, SocketIOFrame frame, boolean complete)
+				throws SocketIOException {
+			ServletResponse response = cont.getServletResponse();
+			boolean done = false;
+			try {
+				if (frame == null) {
+					writeData(response, pending);
+				} else if (pending == null) {
+					writeFrame(response, frame);
+				} else {
+					writeData(response, pending + frame.encode());
+				}
+				for (;;) {
+					String data;
+					synchronized (this) {
+						if (complete || continuation != cont || buffer.isEmpty()) {
+							writing = false;
+							done = true;
+							if (completeAfterWrite) {
+								completeAfterWrite = false;
+								complete = true;
+							} else if (!complete) {
+								session.startHeartbeatTimer();
+							}
+							break;
 						}
-					} else {
-						String data = frame.encode();
-						if (buffer.putMessage(data, maxIdleTime) == false) {
-							session.onDisconnect(DisconnectReason.TIMEOUT);
-							abort();
-							throw new SocketIOException();
+						data = drainBuffer(0).toString();
+					}
+					writeData(response, data);
+				}
+			} catch (IOException e) {
+				if (replayLog == null || !isConnectionPersistant) {
+					throw new SocketIOException(e);
+				}
+				// What was written is in the replay log, so wait for the client to resume.
+				Log.debug("Session["+session.getSessionId()+"]: stream lost: " + e);
+				synchronized (this) {
+					if (continuation == cont) {
+						continuation = null;
+						session.startTimeoutTimer();
+					}
+				}
+				complete = true;
+			} finally {
+				if (!done) {
+					synchronized (this) {
+						writing = false;
+						if (completeAfterWrite) {
+							completeAfterWrite = false;
+							complete = true;
 						}
 					}
-				} else {
-					throw new SocketIOClosedException();
+				}
+				if (complete && cont.isSuspended()) {
+					cont.complete();
 				}
 			}
 		}
@@ -150,14 +539,70 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 		@Override
 		public void sendMessage(int messageType, String message)
 				throws SocketIOException {
-			synchronized (this) {
-				Log.debug("Session["+session.getSessionId()+"]: " +
-						"sendMessage(int, String): [" + messageType + "]: " + message);
-				if (is_open && session.getConnectionState() == ConnectionState.CONNECTED) {
-					sendMessage(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message));
-				} else {
-					throw new SocketIOClosedException();
+			Log.debug("Session["+session.getSessionId()+"]: " +
+					"sendMessage(int, String): [" + messageType + "]: " + message);
+			sendFrame(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message), null, true);
+		}
+
+		@Override
+		public void sendMessage(int messageType, String message, String conflationKey)
+				throws SocketIOException {
+			sendFrame(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message), conflationKey, true);
+		}
+
+		@Override
+		public void sendMessage(int messageType, byte[] data) throws SocketIOException {
+			throw new SocketIOException("Binary messages need a binary websocket connection");
+		}
+
+		@Override
+		public void sendMessage(int messageType, ByteBuffer data) throws SocketIOException {
+			throw new SocketIOException("Binary messages need a binary websocket connection");
+		}
+
+		@Override
+		public void sendMessage(SocketIOMessage message) throws SocketIOException {
+			sendFrame(message.getFrame(), null, true);
+		}
+
+		@Override
+		public void sendMessage(SocketIOMessage message, SendCallback callback) {
+			// Never waits, neither for room nor for the memory budget, and leaves the write to
+			// a waiting request to the flush scheduler so a slow client can't hold up the caller.
+			try {
+				synchronized (this) {
+					if (!is_open || session.getConnectionState() != ConnectionState.CONNECTED) {
+						throw new SocketIOClosedException();
+					}
+					if (!bufferFrame(message.getFrame(), null, false)) {
+						throw new SocketIOBufferFullException("Outbound buffer full");
+					}
+					// A continuation that isn't suspended yet is still being set up by its
+					// request, which picks up the buffer.
+					if (continuation != null && !writing && continuation.isSuspended()) {
+						scheduleFlush();
+					}
 				}
+			} catch (SocketIOException e) {
+				callback.onFailed(e);
+				return;
+			}
+			callback.onSent();
+		}
+
+		/**
+		 * Have the flush scheduler write the buffer to the waiting request, at once unless the
+		 * flush window holds it back. Must be called while holding this helper's lock.
+		 */
+		private void scheduleFlush() {
+			boolean holdBack = flushWindow > 0 && !continuation.isInitial() &&
+					buffer.getAvailableBytes() < flushWindowSize;
+			if (flushTask != null && !holdBack) {
+				flushTask.cancel(false);
+				flushTask = null;
+			}
+			if (flushTask == null) {
+				flushTask = getFlushScheduler().schedule(flusher, holdBack ? flushWindow : 0);
 			}
 		}
 
@@ -166,6 +611,7 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 				HttpServletResponse response, SocketIOSession session)
 				throws IOException {
 			if ("GET".equals(request.getMethod())) {
+				long lastSeq = replayLog == null ? -1 : getResumeSeq(request);
 				synchronized (this) {
 					if (!is_open && buffer.isEmpty()) {
 						response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -173,6 +619,24 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 						/*
 						 */
 						Continuation cont = (Continuation)request.getAttribute(CONTINUATION_KEY);
+						if (lastSeq >= 0 && cont == null) {
+							if (!replayLog.canReplayAfter(lastSeq)) {
+								Log.debug("Session["+session.getSessionId()+"]: can't resume after " + lastSeq);
+								session.onDisconnect(DisconnectReason.ERROR);
+								abort();
+								response.sendError(HttpServletResponse.SC_NOT_FOUND);
+								return;
+							}
+							if (isConnectionPersistant) {
+								resumeAfter = lastSeq;
+								replayLog.acknowledge(lastSeq);
+								session.clearTimeoutTimer();
+								if (!reattach(request, response)) {
+									response.sendError(HttpServletResponse.SC_NOT_FOUND);
+								}
+								return;
+							}
+						}
 						if (continuation != null || cont != null) {
 							if (continuation == cont) {
 								continuation = null;
@@ -184,13 +648,15 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 							return;
 						}
 						if (!isConnectionPersistant) {
-							if (!buffer.isEmpty()) {
-								List<String> messages = buffer.drainMessages();
-								if (messages.size() > 0) {
-									StringBuilder data = new StringBuilder();
-									for (String msg: messages) {
-										data.append(msg);
-									}
+							String missed = "";
+							if (lastSeq >= 0) {
+								missed = replayLog.since(lastSeq);
+								replayLog.acknowledge(lastSeq);
+							}
+							if (!buffer.isEmpty() || missed.length() > 0) {
+								StringBuilder data = drainBuffer(missed.length());
+								data.insert(0, missed);
+								if (data.length() > 0) {
 									startSend(response);
 									writeData(response, data.toString());
 									finishSend(response);
@@ -219,16 +685,25 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			} else if ("POST".equals(request.getMethod())) {
 				if (is_open) {
 					int size = request.getContentLength();
-					BufferedReader reader = request.getReader();
 					if (size == 0) {
 						response.sendError(HttpServletResponse.SC_BAD_REQUEST);
 					} else {
-						String data = decodePostData(request.getContentType(), IO.toString(reader));
-						if (data != null && data.length() > 0) {
-							List<SocketIOFrame> list = SocketIOFrame.parse(data);
-							synchronized (session) {
-								for (SocketIOFrame msg: list) {
-									session.onMessage(msg);
+						String encoding = request.getCharacterEncoding();
+						if (encoding == null || "UTF-8".equalsIgnoreCase(encoding)) {
+							String contentType = request.getContentType();
+							boolean formEncoded = contentType != null &&
+									contentType.startsWith("application/x-www-form-urlencoded");
+							// Idle sessions hold no decoder, a small body gets a buffer no larger than itself.
+							int bufferLength = size > 0 && size < StreamingFrameDecoder.DEFAULT_BUFFER_SIZE ?
+									size : StreamingFrameDecoder.DEFAULT_BUFFER_SIZE;
+							new StreamingFrameDecoder(lockedDispatcher, bufferLength).decode(
+									request.getInputStream(), formEncoded);
+						} else {
+							BufferedReader reader = request.getReader();
+							String data = decodePostData(request.getContentType(), IO.toString(reader));
+							if (data != null && data.length() > 0) {
+								synchronized (session) {
+									SocketIOFrame.parse(data, dispatcher);
 								}
 							}
 						}
@@ -265,11 +740,42 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			}
 		}
 		
+		/**
+		 * @return The sequence number the client last received, or -1 if the request has none.
+		 */
+		private long getResumeSeq(HttpServletRequest request) {
+			String seq = request.getParameter(RESUME_SEQ_PARAM);
+			if (seq != null) {
+				try {
+					return Long.parseLong(seq);
+				} catch (NumberFormatException e) {
+					// Treat as absent.
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Called when a persistent connection's request ends without the session ending.
+		 * @return true if the session is kept, waiting for the client to resume it.
+		 */
+		private boolean awaitResume() {
+			if (replayLog == null || !is_open || disconnectWhenEmpty) {
+				return false;
+			}
+			Log.debug("Session["+session.getSessionId()+"]: connection lost, waiting for the client to resume");
+			session.startTimeoutTimer();
+			return true;
+		}
+
 		@Override
 		public void onComplete(Continuation cont) {
 			if (continuation != null && cont == continuation) {
 				continuation = null;
 				if (isConnectionPersistant) {
+					if (awaitResume()) {
+						return;
+					}
 					is_open = false;
 					if (!disconnectWhenEmpty) {
 						session.onDisconnect(DisconnectReason.DISCONNECT);
@@ -295,6 +801,9 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			if (continuation != null && cont == continuation) {
 				continuation = null;
 				if (isConnectionPersistant) {
+					if (awaitResume()) {
+						return;
+					}
 					is_open = false;
 					session.onDisconnect(DisconnectReason.TIMEOUT);
 					abort();
@@ -335,12 +844,83 @@ public abstract class XHRTransport extends AbstractHttpTransport {
                 if (isConnectionPersistant) {
                     request.setAttribute(CONTINUATION_KEY, continuation);
                     continuation.suspend(response);
+                    synchronized (this) {
+                        // Asynchronous sends made while connecting were left in the buffer.
+                        if (continuation != null && !writing && !buffer.isEmpty()) {
+                            scheduleFlush();
+                        }
+                    }
                 } else {
                     continuation = null;
                 }
             }
 		}
 
+		/**
+		 * Move a persistent connection onto a new request after the client lost the old one.
+		 * Whatever {@link #replayMissed(ServletResponse)} writes and anything buffered meanwhile
+		 * is sent before the new request is suspended.
+		 * @return false if the session is no longer open.
+		 */
+		protected boolean reattach(HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			synchronized (this) {
+				if (!is_open || !isConnectionPersistant) {
+					return false;
+				}
+				if (continuation != null) {
+					Continuation old = continuation;
+					continuation = null;
+					if (writing) {
+						completeAfterWrite = true;
+					} else if (old.isSuspended()) {
+						old.complete();
+					}
+				}
+				request.setAttribute(SESSION_KEY, session);
+				response.setBufferSize(bufferSize);
+				Continuation cont = ContinuationSupport.getContinuation(request);
+				cont.addContinuationListener(this);
+				cont.setTimeout(0);
+				startSend(response);
+				replayMissed(response);
+				if (!buffer.isEmpty()) {
+					writeData(response, drainBuffer(0).toString());
+				}
+				continuation = cont;
+				request.setAttribute(CONTINUATION_KEY, cont);
+				cont.suspend(response);
+			}
+			return true;
+		}
+
+		/**
+		 * Called by {@link #reattach(HttpServletRequest, HttpServletResponse)} to write data
+		 * the client may have missed on its previous connection.
+		 */
+		protected void replayMissed(ServletResponse response) throws IOException {
+			if (replayLog != null) {
+				String missed = replayLog.since(resumeAfter);
+				if (missed.length() > 0) {
+					writeData(response, missed);
+				}
+			}
+		}
+
+		@Override
+		public void shed() {
+			synchronized (this) {
+				if (account.getBytes() == 0) {
+					// Already aborted.
+					return;
+				}
+				Log.info("Session["+session.getSessionId()+"]: shedding " + account.getBytes() +
+						" bytes to stay within the outbound memory budget");
+				session.onDisconnect(DisconnectReason.TIMEOUT);
+				abort();
+			}
+		}
+
 		@Override
 		public void disconnectWhenEmpty() {
 			disconnectWhenEmpty = true;
@@ -351,25 +931,46 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			session.clearHeartbeatTimer();
 			session.clearTimeoutTimer();
 			is_open = false;
-			if (continuation != null) {
-				Continuation cont = continuation;
-				continuation = null;
-				if (cont.isSuspended()) {
-					cont.complete();
+			Continuation cont = null;
+			synchronized (this) {
+				if (continuation != null) {
+					if (writing) {
+						// The response is in use, leave it to the writer to complete.
+						completeAfterWrite = true;
+					} else {
+						cont = continuation;
+					}
+					continuation = null;
 				}
-			}
-			buffer.setListener(new TransportBuffer.BufferListener() {
-				@Override
-				public boolean onMessages(List<String> messages) {
-					return false;
+				if (flushTask != null) {
+					flushTask.cancel(false);
+					flushTask = null;
 				}
+				// The buffer has a single consumer; clear it under the same lock as drainBuffer.
+				buffer.setListener(new TransportBuffer.BufferListener() {
+					@Override
+					public boolean onMessages(List<String> messages) {
+						return false;
+					}
 
-				@Override
-				public boolean onMessage(String message) {
-					return false;
-				}
-			});
-			buffer.clear();
+					@Override
+					public boolean onMessage(String message) {
+						return false;
+					}
+				});
+				buffer.clear();
+				// Release producers waiting for room.
+				notifyAll();
+			}
+			if (cont != null && cont.isSuspended()) {
+				cont.complete();
+			}
+			if (replayLog != null) {
+				replayLog.clear();
+			}
+			if (account != null) {
+				account.close();
+			}
 			session.onShutdown();
 		}
 	}
@@ -377,6 +978,50 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 	public XHRTransport(int bufferSize, int maxIdleTime) {
 		this.bufferSize = bufferSize;
 		this.maxIdleTime = maxIdleTime;
+		this.flushWindowSize = bufferSize / 2;
+	}
+
+	@Override
+	public void init(ServletConfig config) {
+		super.init(config);
+		String type = config.getInitParameter(BUFFER_TYPE_KEY);
+		if (type != null) {
+			if (!BUFFER_TYPE_RING.equals(type) && !BUFFER_TYPE_QUEUE.equals(type)) {
+				throw new IllegalArgumentException("Unknown " + BUFFER_TYPE_KEY + ": " + type);
+			}
+			bufferType = type;
+		}
+		String str = config.getInitParameter(FLUSH_WINDOW_KEY);
+		if (str != null) {
+			flushWindow = Long.parseLong(str);
+		}
+		str = config.getInitParameter(FLUSH_WINDOW_SIZE_KEY);
+		if (str != null) {
+			flushWindowSize = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(RESUME_WINDOW_KEY);
+		if (str != null) {
+			resumeWindow = Integer.parseInt(str);
+		}
+	}
+
+	/**
+	 * Create the buffer that holds a session's messages while no request is waiting for them.
+	 * @param account Where the buffer reports its usage, or null if there is no memory budget.
+	 */
+	protected TransportBuffer newTransportBuffer(OutboundMemoryAccountant.Account account) {
+		if (BUFFER_TYPE_QUEUE.equals(bufferType)) {
+			return new QueueTransportBuffer(bufferSize, account);
+		}
+		return new RingTransportBuffer(bufferSize, RingTransportBuffer.DEFAULT_CAPACITY, account);
+	}
+
+	/**
+	 * Create the log of written frames that lets a session be resumed.
+	 * @return The log, or null if sessions can't be resumed.
+	 */
+	ReplayLog newReplayLog(OutboundMemoryAccountant.Account account) {
+		return resumeWindow > 0 ? new ReplayLog(resumeWindow, account) : null;
 	}
 
 	/**
@@ -0,0 +1,132 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ClusterMessageTest {
+	private static final ClusterMessage MESSAGE = new ClusterMessage("node-\u00e9", 42,
+			ClusterMessage.Kind.TOPIC, "prices/EUR", 3, "{\"bid\":\"\u20ac1\"}");
+
+	@Test
+	public void roundTrips() {
+		ClusterMessage decoded = ClusterMessage.decode(ByteBuffer.wrap(MESSAGE.encode()));
+		assertMessage(decoded);
+	}
+
+	@Test
+	public void decodesConsecutiveMessagesAndWaitsForTheRest() {
+		byte[] one = MESSAGE.encode();
+		ByteBuffer buffer = ByteBuffer.allocate(one.length * 3);
+		buffer.put(one).put(one).put(one, 0, one.length - 1);
+		buffer.flip();
+		assertMessage(ClusterMessage.decode(buffer));
+		assertMessage(ClusterMessage.decode(buffer));
+		int position = buffer.position();
+		assertNull(ClusterMessage.decode(buffer));
+		assertEquals(position, buffer.position());
+	}
+
+	@Test
+	public void truncatedInputNeedsMoreBytes() {
+		byte[] bytes = MESSAGE.encode();
+		for (int len = 0; len < bytes.length; len++) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, len);
+			assertNull("prefix of " + len + " bytes", ClusterMessage.decode(buffer));
+			assertEquals(0, buffer.position());
+		}
+	}
+
+	@Test
+	public void decodesFromASlice() {
+		byte[] one = MESSAGE.encode();
+		ByteBuffer buffer = ByteBuffer.allocate(one.length + 7);
+		buffer.position(7);
+		buffer.put(one);
+		buffer.position(7);
+		assertMessage(ClusterMessage.decode(buffer.slice()));
+	}
+
+	@Test
+	public void rejectsNegativeLength() {
+		ByteBuffer buffer = ByteBuffer.wrap(MESSAGE.encode());
+		buffer.putInt(0, -1);
+		assertInvalid(buffer);
+	}
+
+	@Test
+	public void rejectsUnknownKind() {
+		ByteBuffer buffer = ByteBuffer.wrap(MESSAGE.encode());
+		buffer.put(4, (byte)ClusterMessage.Kind.values().length);
+		assertInvalid(buffer);
+		buffer.put(4, (byte)-1);
+		assertInvalid(buffer);
+	}
+
+	@Test
+	public void rejectsLengthShorterThanItsFields() {
+		byte[] bytes = MESSAGE.encode();
+		// Every length that cuts the body short, with the remaining bytes still present.
+		for (int length = 0; length < bytes.length - 4; length++) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.clone());
+			buffer.putInt(0, length);
+			assertInvalid(buffer);
+		}
+	}
+
+	@Test
+	public void rejectsStringLengthsBeyondTheBody() {
+		byte[] bytes = MESSAGE.encode();
+		int targetLengthAt = 4 + 1 + 4 + 8 + 2 + MESSAGE.getOrigin().getBytes(BinaryFrameCodec.UTF_8).length;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(targetLengthAt, bytes.length);
+		assertInvalid(buffer);
+		buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(targetLengthAt, -1);
+		assertInvalid(buffer);
+	}
+
+	private static void assertMessage(ClusterMessage decoded) {
+		assertEquals(MESSAGE.getOrigin(), decoded.getOrigin());
+		assertEquals(MESSAGE.getSeq(), decoded.getSeq());
+		assertEquals(MESSAGE.getKind(), decoded.getKind());
+		assertEquals(MESSAGE.getTarget(), decoded.getTarget());
+		assertEquals(MESSAGE.getMessageType(), decoded.getMessageType());
+		assertEquals(MESSAGE.getData(), decoded.getData());
+	}
+
+	private static void assertInvalid(ByteBuffer buffer) {
+		try {
+			ClusterMessage.decode(buffer);
+			fail("Decoded an invalid message");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
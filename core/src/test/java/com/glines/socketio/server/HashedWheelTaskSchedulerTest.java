@@ -0,0 +1,150 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTaskSchedulerTest {
+	private static final long TICK = 10;
+
+	private HashedWheelTaskScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		// A small wheel, so that delays of a few ticks already take several rounds.
+		scheduler = new HashedWheelTaskScheduler(TICK, 4);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void runsTaskNoEarlierThanItsDelay() throws InterruptedException {
+		final long start = System.nanoTime();
+		final long[] elapsed = new long[1];
+		final CountDownLatch fired = new CountDownLatch(1);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				fired.countDown();
+			}
+		}, 100);
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertTrue("ran after " + elapsed[0] + "ms", elapsed[0] >= 100);
+	}
+
+	@Test
+	public void canceledTaskNeverRuns() throws InterruptedException {
+		AtomicInteger runs = new AtomicInteger();
+		SocketIOSession.SessionTask task = scheduler.schedule(new Counter(runs, null), 5 * TICK);
+		assertTrue(task.cancel());
+		// Canceling again reports the task as canceled.
+		assertTrue(task.cancel());
+		Thread.sleep(20 * TICK);
+		assertEquals(0, runs.get());
+		assertEquals(0, scheduler.getQueuedCount());
+	}
+
+	@Test
+	public void cancelAfterRunFails() throws InterruptedException {
+		CountDownLatch fired = new CountDownLatch(1);
+		SocketIOSession.SessionTask task = scheduler.schedule(new Counter(new AtomicInteger(), fired), TICK);
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertFalse(task.cancel());
+	}
+
+	@Test
+	public void rescheduleRunsOnlyTheLastTask() throws InterruptedException {
+		// The way the heartbeat and timeout timers are reset on every message.
+		AtomicInteger stale = new AtomicInteger();
+		AtomicInteger last = new AtomicInteger();
+		CountDownLatch fired = new CountDownLatch(1);
+		SocketIOSession.SessionTask task = null;
+		for (int i = 0; i < 1000; i++) {
+			if (task != null) {
+				assertTrue(task.cancel());
+			}
+			task = scheduler.schedule(new Counter(stale, null), 3 * TICK);
+		}
+		assertTrue(task.cancel());
+		scheduler.schedule(new Counter(last, fired), 3 * TICK);
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		Thread.sleep(10 * TICK);
+		assertEquals(0, stale.get());
+		assertEquals(1, last.get());
+	}
+
+	@Test
+	public void runsTasksSpanningSeveralRounds() throws InterruptedException {
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch fired = new CountDownLatch(3);
+		long start = System.nanoTime();
+		scheduler.schedule(new Counter(runs, fired), 0);
+		scheduler.schedule(new Counter(runs, fired), 6 * TICK);
+		scheduler.schedule(new Counter(runs, fired), 25 * TICK);
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 25 * TICK);
+		assertEquals(3, runs.get());
+	}
+
+	@Test
+	public void taskScheduledAfterShutdownIsCanceled() throws InterruptedException {
+		scheduler.shutdown();
+		AtomicInteger runs = new AtomicInteger();
+		SocketIOSession.SessionTask task = scheduler.schedule(new Counter(runs, null), 0);
+		assertTrue(task.cancel());
+		Thread.sleep(5 * TICK);
+		assertEquals(0, runs.get());
+	}
+
+	private static final class Counter implements Runnable {
+		private final AtomicInteger runs;
+		private final CountDownLatch fired;
+
+		Counter(AtomicInteger runs, CountDownLatch fired) {
+			this.runs = runs;
+			this.fired = fired;
+		}
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+			if (fired != null) {
+				fired.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class SlotSetTest {
+	@Test
+	public void switchesToBitsetAndBack() {
+		SlotSet set = new SlotSet();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int i = 0; i < SlotSet.SMALL_MAX; i++) {
+			assertTrue(set.add(i * 5 + 1));
+			expected.add(i * 5 + 1);
+		}
+		// Still a sorted array: the limit is just past the highest member.
+		assertEquals(expected.last() + 1, set.getSlotLimit());
+		assertTrue(set.add(1000));
+		expected.add(1000);
+		// A bitset: the limit is a whole number of words, with room to grow.
+		assertTrue(set.getSlotLimit() > 1001);
+		assertEquals(0, set.getSlotLimit() % 64);
+		assertSame(expected, set);
+		assertFalse(set.add(1000));
+
+		// Shrinks back to an array once a quarter of SMALL_MAX or fewer are left.
+		while (expected.size() > SlotSet.SMALL_MAX / 4 + 1) {
+			int slot = expected.pollFirst();
+			assertTrue(set.remove(slot));
+			assertFalse(set.remove(slot));
+		}
+		assertEquals(0, set.getSlotLimit() % 64);
+		int slot = expected.pollFirst();
+		assertTrue(set.remove(slot));
+		assertEquals(expected.last() + 1, set.getSlotLimit());
+		assertSame(expected, set);
+
+		// And grows again.
+		for (int i = 0; i < SlotSet.SMALL_MAX; i++) {
+			set.add(2000 + i);
+			expected.add(2000 + i);
+		}
+		assertSame(expected, set);
+	}
+
+	@Test
+	public void matchesATreeSet() {
+		Random random = new Random(42);
+		SlotSet set = new SlotSet();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			// Bias towards growing and then shrinking, so both representations are exercised.
+			boolean grow = (i / 2000) % 2 == 0 ? random.nextInt(20) != 0 : random.nextInt(20) == 0;
+			int slot = random.nextInt(300);
+			if (grow) {
+				assertEquals(expected.add(slot), set.add(slot));
+			} else {
+				assertEquals(expected.remove(slot), set.remove(slot));
+			}
+			if (i % 97 == 0) {
+				assertSame(expected, set);
+			}
+		}
+		assertSame(expected, set);
+	}
+
+	@Test
+	public void visitsRanges() {
+		for (int count : new int[] {10, 200}) {
+			SlotSet set = new SlotSet();
+			TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (int i = 0; i < count; i++) {
+				set.add(i * 3);
+				expected.add(i * 3);
+			}
+			int[][] ranges = {{0, 1}, {1, 64}, {63, 65}, {64, 128}, {100, 601}, {0, Integer.MAX_VALUE}};
+			for (int[] range : ranges) {
+				assertEquals(new ArrayList<Integer>(expected.subSet(range[0], range[1])),
+						visit(set, range[0], range[1]));
+			}
+		}
+	}
+
+	@Test
+	public void emptySet() {
+		SlotSet set = new SlotSet();
+		assertTrue(set.isEmpty());
+		assertEquals(0, set.getSlotLimit());
+		assertEquals(-1, set.nextSlot(0));
+		assertFalse(set.contains(0));
+		assertFalse(set.remove(0));
+	}
+
+	private static void assertSame(TreeSet<Integer> expected, SlotSet set) {
+		assertEquals(expected.size(), set.size());
+		assertEquals(expected.isEmpty(), set.isEmpty());
+		assertEquals(new ArrayList<Integer>(expected), visit(set, 0, Integer.MAX_VALUE));
+		int limit = set.getSlotLimit();
+		for (int slot = 0; slot < limit + 70; slot++) {
+			assertEquals(expected.contains(slot), set.contains(slot));
+			Integer next = expected.ceiling(slot);
+			assertEquals(next == null ? -1 : next.intValue(), set.nextSlot(slot));
+		}
+		if (!expected.isEmpty()) {
+			assertTrue(expected.last() < limit);
+		}
+	}
+
+	private static List<Integer> visit(SlotSet set, int fromSlot, int toSlot) {
+		final List<Integer> visited = new ArrayList<Integer>();
+		set.forEach(new SlotSet.Visitor() {
+			@Override
+			public void visit(int slot) {
+				visited.add(slot);
+			}
+		}, fromSlot, toSlot);
+		return visited;
+	}
+}
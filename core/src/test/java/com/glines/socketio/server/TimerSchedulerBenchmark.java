@@ -0,0 +1,86 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the session timer schedulers. Each run schedules one idle timeout per session,
+ * then resets them all the way heartbeats do, and waits for the reset timers to fire.
+ * <p>
+ * Run with a larger heap for the 1M run, e.g. -Xmx1g. Pass session counts as arguments to
+ * run other sizes.
+ */
+public final class TimerSchedulerBenchmark {
+	public static void main(String... args) throws Exception {
+		int[] counts = {10000, 100000, 1000000};
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				counts[i] = Integer.parseInt(args[i]);
+			}
+		}
+		// Warm up both schedulers before measuring.
+		run("wheel", new HashedWheelTaskScheduler(), 10000, false);
+		run("executor", new ExecutorTaskScheduler(), 10000, false);
+		for (int count : counts) {
+			run("wheel", new HashedWheelTaskScheduler(), count, true);
+			run("executor", new ExecutorTaskScheduler(), count, true);
+		}
+	}
+
+	private static void run(String name, SocketIOSession.SessionTaskScheduler scheduler, int count,
+			boolean print) throws InterruptedException {
+		final CountDownLatch fired = new CountDownLatch(count);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				fired.countDown();
+			}
+		};
+		SocketIOSession.SessionTask[] tasks = new SocketIOSession.SessionTask[count];
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			tasks[i] = scheduler.schedule(task, 60000);
+		}
+		long scheduled = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			tasks[i].cancel();
+			tasks[i] = scheduler.schedule(task, 500 + i % 500);
+		}
+		long reset = System.nanoTime();
+		boolean done = fired.await(60, TimeUnit.SECONDS);
+		long end = System.nanoTime();
+		scheduler.shutdown();
+		if (print) {
+			System.out.println(String.format("%-8s %,9d timers: schedule %,6d ms, reset %,6d ms, fired %s %,6d ms after the last reset",
+					name, count, millis(scheduled - start), millis(reset - scheduled),
+					done ? "all" : "NOT ALL", millis(end - reset)));
+		}
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicManagerTest {
+	private SessionRegistry registry;
+	private TopicManager topics;
+	private List<String> received;
+
+	@Before
+	public void setUp() {
+		registry = new SessionRegistry();
+		topics = new TopicManager(registry);
+		received = new ArrayList<String>();
+	}
+
+	@Test
+	public void matchesWildcards() {
+		SocketIOSession exact = newSession("exact");
+		SocketIOSession one = newSession("one");
+		SocketIOSession rest = newSession("rest");
+		SocketIOSession all = newSession("all");
+		SocketIOSession other = newSession("other");
+		assertTrue(topics.subscribe("quotes.nyse.ibm", exact.getTransportHandler()));
+		assertTrue(topics.subscribe("quotes.*.ibm", one.getTransportHandler()));
+		assertTrue(topics.subscribe("quotes.#", rest.getTransportHandler()));
+		assertTrue(topics.subscribe("#", all.getTransportHandler()));
+		assertTrue(topics.subscribe("news.*", other.getTransportHandler()));
+
+		assertDelivered("quotes.nyse.ibm", "exact", "one", "rest", "all");
+		assertDelivered("quotes.lse.ibm", "one", "rest", "all");
+		assertDelivered("quotes.nyse", "rest", "all");
+		// "#" also matches no segments at all.
+		assertDelivered("quotes", "rest", "all");
+		assertDelivered("quotes.nyse.ibm.bid", "rest", "all");
+		assertDelivered("news.sports", "other", "all");
+		// "*" matches exactly one segment.
+		assertDelivered("news", "all");
+		assertDelivered("news.sports.football", "all");
+	}
+
+	@Test
+	public void deliversOncePerSubscriber() {
+		SocketIOSession session = newSession("s");
+		assertTrue(topics.subscribe("a.b", session.getTransportHandler()));
+		assertTrue(topics.subscribe("a.*", session.getTransportHandler()));
+		assertTrue(topics.subscribe("a.#", session.getTransportHandler()));
+		assertFalse(topics.subscribe("a.#", session.getTransportHandler()));
+		assertDelivered("a.b", "s");
+		assertDelivered("a.c", "s");
+	}
+
+	@Test
+	public void unsubscribes() {
+		SocketIOSession session = newSession("s");
+		topics.subscribe("a.*", session.getTransportHandler());
+		topics.subscribe("a.b", session.getTransportHandler());
+		assertFalse(topics.unsubscribe("a.c", session.getTransportHandler()));
+		assertFalse(topics.unsubscribe("a", session.getTransportHandler()));
+		assertTrue(topics.unsubscribe("a.*", session.getTransportHandler()));
+		assertFalse(topics.unsubscribe("a.*", session.getTransportHandler()));
+		assertDelivered("a.c");
+		assertDelivered("a.b", "s");
+	}
+
+	@Test
+	public void prunesUnusedNodes() {
+		SocketIOSession first = newSession("first");
+		SocketIOSession second = newSession("second");
+		topics.subscribe("a.b.c", first.getTransportHandler());
+		topics.subscribe("a.b.c", second.getTransportHandler());
+		topics.subscribe("a.x", second.getTransportHandler());
+		assertEquals(4, topics.getNodeCount());
+
+		// Still has a subscriber.
+		topics.unsubscribe("a.b.c", first.getTransportHandler());
+		assertEquals(4, topics.getNodeCount());
+		// Prunes "a.b.c" and "a.b", but "a" still leads to "a.x".
+		topics.unsubscribe("a.b.c", second.getTransportHandler());
+		assertEquals(2, topics.getNodeCount());
+		topics.unsubscribe("a.x", second.getTransportHandler());
+		assertEquals(0, topics.getNodeCount());
+
+		// The pruned path is rebuilt on the next subscribe.
+		assertTrue(topics.subscribe("a.b.c", first.getTransportHandler()));
+		assertEquals(3, topics.getNodeCount());
+		assertDelivered("a.b.c", "first");
+	}
+
+	@Test
+	public void dropsSubscriptionsOfShutDownSessions() {
+		SocketIOSession gone = newSession("gone");
+		SocketIOSession kept = newSession("kept");
+		topics.subscribe("a.b", gone.getTransportHandler());
+		topics.subscribe("a.#", gone.getTransportHandler());
+		topics.subscribe("a.b", kept.getTransportHandler());
+		assertEquals(3, topics.getNodeCount());
+
+		topics.unsubscribeAll(gone);
+		registry.remove(gone);
+		topics.forget(gone);
+		assertEquals(2, topics.getNodeCount());
+		assertDelivered("a.b", "kept");
+		// A released session can't subscribe again.
+		assertFalse(topics.subscribe("a.b", gone.getTransportHandler()));
+	}
+
+	@Test
+	public void rejectsMisplacedAnySegments() {
+		SocketIOSession session = newSession("s");
+		for (String pattern: new String[] {"#.a", "a.#.b"}) {
+			try {
+				topics.subscribe(pattern, session.getTransportHandler());
+				fail(pattern);
+			} catch (IllegalArgumentException e) {
+				// Expected.
+			}
+		}
+		assertEquals(0, topics.getNodeCount());
+	}
+
+	private void assertDelivered(String topic, String... sessionIds) {
+		received.clear();
+		assertEquals(sessionIds.length, topics.publish(topic, new SocketIOMessage(topic)));
+		List<String> expected = new ArrayList<String>(Arrays.asList(sessionIds));
+		assertEquals(topic, sort(expected), sort(received));
+	}
+
+	private static List<String> sort(List<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+
+	private SocketIOSession newSession(final String sessionId) {
+		final int slot = registry.allocateSlot();
+		final SocketIOSession.SessionTransportHandler handler = newProxy(
+				SocketIOSession.SessionTransportHandler.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getSessionId")) {
+					return sessionId;
+				}
+				if (method.getName().equals("sendMessage") && args.length == 2) {
+					received.add(sessionId);
+				}
+				return identity(proxy, method, args);
+			}
+		});
+		SocketIOSession session = newProxy(SocketIOSession.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getSessionId")) {
+					return sessionId;
+				}
+				if (method.getName().equals("getSlot")) {
+					return slot;
+				}
+				if (method.getName().equals("getTransportHandler")) {
+					return handler;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+		registry.add(session);
+		return session;
+	}
+
+	private static Object identity(Object proxy, Method method, Object[] args) {
+		if (method.getName().equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+		if (method.getName().equals("equals")) {
+			return proxy == args[0];
+		}
+		return null;
+	}
+
+	private static <T> T newProxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(TopicManagerTest.class.getClassLoader(),
+				new Class<?>[] {type}, handler));
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.cluster;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.glines.socketio.server.ClusterBus;
+import com.glines.socketio.server.ClusterMessage;
+
+/**
+ * Measures cluster bus throughput with every node publishing to every other node at once,
+ * over the TCP bus on localhost and over the in-process loopback bus. Each node checks that
+ * the messages of every other node arrive in order and counts the ones that don't arrive.
+ * <p>
+ * Arguments: number of nodes (default 3), messages sent by each node (default 500000) and
+ * the first TCP port (default 19200).
+ */
+public final class ClusterBusBenchmark {
+	private static final String PAYLOAD = "{\"name\":\"quote\",\"args\":[{\"symbol\":\"IBM\",\"price\":101.25}]}";
+	// Messages a sender may be ahead of its slowest receiver.
+	private static final int WINDOW = 100000;
+
+	public static void main(String... args) throws Exception {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 19200;
+
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < nodes; i++) {
+			addresses.add(new InetSocketAddress("127.0.0.1", port + i));
+		}
+		ClusterBus[] tcp = new ClusterBus[nodes];
+		for (int i = 0; i < nodes; i++) {
+			tcp[i] = new TcpClusterBus(addresses.get(i), addresses);
+		}
+		run("tcp", tcp, messages);
+
+		LoopbackClusterBus.Hub hub = new LoopbackClusterBus.Hub();
+		ClusterBus[] loopback = new ClusterBus[nodes];
+		for (int i = 0; i < nodes; i++) {
+			loopback[i] = new LoopbackClusterBus(hub);
+		}
+		run("loopback", loopback, messages);
+	}
+
+	private static void run(String name, ClusterBus[] buses, final int messages) throws Exception {
+		final int nodes = buses.length;
+		// received[to].get(from): messages node to got from node from.
+		final AtomicLongArray[] received = new AtomicLongArray[nodes];
+		final AtomicInteger outOfOrder = new AtomicInteger();
+		for (int i = 0; i < nodes; i++) {
+			final AtomicLongArray counts = new AtomicLongArray(nodes);
+			// Only used by the bus's receiving thread.
+			final long[] lastSeq = new long[nodes];
+			received[i] = counts;
+			buses[i].start(new ClusterBus.Listener() {
+				@Override
+				public void onMessage(ClusterMessage message) {
+					int from = Integer.parseInt(message.getOrigin());
+					if (message.getSeq() <= lastSeq[from]) {
+						outOfOrder.incrementAndGet();
+					}
+					lastSeq[from] = message.getSeq();
+					counts.incrementAndGet(from);
+				}
+			});
+		}
+		// Let the nodes connect to each other.
+		Thread.sleep(2000);
+
+		Thread[] senders = new Thread[nodes];
+		for (int i = 0; i < nodes; i++) {
+			final int from = i;
+			final ClusterBus bus = buses[i];
+			senders[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					String origin = String.valueOf(from);
+					for (int seq = 1; seq <= messages; seq++) {
+						bus.send(new ClusterMessage(origin, seq, ClusterMessage.Kind.TOPIC, "quotes.nyse.ibm", 0, PAYLOAD));
+						if ((seq & 0xFFF) == 0) {
+							awaitReceivers(received, from, seq - WINDOW);
+						}
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread sender : senders) {
+			sender.start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (total(received) < (long)nodes * (nodes - 1) * messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		for (ClusterBus bus : buses) {
+			bus.stop();
+		}
+
+		long delivered = total(received);
+		long expected = (long)nodes * (nodes - 1) * messages;
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsed));
+		System.out.println(String.format("%-8s %d nodes x %,d messages: %,d ms, %,d deliveries/s, %,d missing, %d out of order",
+				name, nodes, messages, millis, delivered * 1000 / millis, expected - delivered, outOfOrder.get()));
+	}
+
+	/**
+	 * Wait, up to a second, for every other node to have received up to seq from a sender.
+	 * The wait keeps a sender from filling its peers' pending buffers, which would drop messages.
+	 */
+	private static void awaitReceivers(AtomicLongArray[] received, int from, long seq) {
+		long deadline = System.currentTimeMillis() + 1000;
+		for (int to = 0; to < received.length; to++) {
+			while (to != from && received[to].get(from) < seq && System.currentTimeMillis() < deadline) {
+				Thread.yield();
+			}
+		}
+	}
+
+	private static long total(AtomicLongArray[] received) {
+		long total = 0;
+		for (int to = 0; to < received.length; to++) {
+			for (int from = 0; from < received[to].length(); from++) {
+				total += received[to].get(from);
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.glines.socketio.server.OutboundMemoryAccountant;
+
+public class ReplayLogTest {
+	@Test
+	public void replaysAfterASequenceNumber() {
+		ReplayLog log = new ReplayLog(1000, null);
+		assertEquals(0, log.getLastSeq());
+		assertTrue(log.canReplayAfter(0));
+		assertEquals("", log.since(0));
+		assertEquals(1, log.append("a"));
+		assertEquals(2, log.append("bc"));
+		assertEquals(3, log.append("d"));
+		assertEquals(3, log.getLastSeq());
+		assertEquals("abcd", log.since(0));
+		assertEquals("bcd", log.since(1));
+		assertEquals("", log.since(3));
+		assertTrue(log.canReplayAfter(0));
+		assertTrue(log.canReplayAfter(3));
+		// Ahead of anything written.
+		assertFalse(log.canReplayAfter(4));
+	}
+
+	@Test
+	public void dropsOldestBeyondMaxChars() {
+		ReplayLog log = new ReplayLog(5, null);
+		log.append("ab");
+		log.append("cd");
+		assertEquals("abcd", log.since(0));
+		log.append("ef");
+		// "ab" no longer fits: the window now starts after 1.
+		assertFalse(log.canReplayAfter(0));
+		assertTrue(log.canReplayAfter(1));
+		assertEquals("cdef", log.since(1));
+		// The last entry is kept even if it alone is larger than the window.
+		log.append("0123456789");
+		assertFalse(log.canReplayAfter(2));
+		assertTrue(log.canReplayAfter(3));
+		assertEquals("0123456789", log.since(3));
+		assertEquals(4, log.getLastSeq());
+	}
+
+	@Test
+	public void acknowledgeMovesTheWindow() {
+		ReplayLog log = new ReplayLog(1000, null);
+		for (int i = 0; i < 5; i++) {
+			log.append(Integer.toString(i));
+		}
+		log.acknowledge(3);
+		assertFalse(log.canReplayAfter(2));
+		assertTrue(log.canReplayAfter(3));
+		assertEquals("34", log.since(3));
+		// Acknowledging again, or something older, changes nothing.
+		log.acknowledge(2);
+		assertEquals("34", log.since(0));
+		log.acknowledge(5);
+		assertTrue(log.canReplayAfter(5));
+		assertFalse(log.canReplayAfter(4));
+		assertEquals("", log.since(5));
+		// Numbering carries on after the window empties.
+		assertEquals(6, log.append("5"));
+		assertEquals("5", log.since(5));
+	}
+
+	@Test
+	public void clearKeepsNumbering() {
+		ReplayLog log = new ReplayLog(1000, null);
+		log.append("a");
+		log.append("b");
+		log.clear();
+		assertEquals(2, log.getLastSeq());
+		assertFalse(log.canReplayAfter(1));
+		assertTrue(log.canReplayAfter(2));
+		assertEquals(3, log.append("c"));
+	}
+
+	@Test
+	public void accountsForRetainedBytes() {
+		OutboundMemoryAccountant accountant = new OutboundMemoryAccountant(1 << 20, 1 << 19,
+				OutboundMemoryAccountant.Reaction.REJECT_SESSIONS, null);
+		try {
+			OutboundMemoryAccountant.Account account = accountant.newAccount(null);
+			ReplayLog log = new ReplayLog(6, account);
+			log.append("ab");
+			// Two characters, three bytes in UTF-8.
+			log.append("\u00e9c");
+			assertEquals(5, account.getBytes());
+			log.append("def");
+			// "ab" was dropped to stay within 6 characters.
+			assertEquals(6, account.getBytes());
+			assertEquals(6, accountant.getUsedBytes());
+			log.acknowledge(2);
+			assertEquals(3, account.getBytes());
+			log.clear();
+			assertEquals(0, account.getBytes());
+			assertEquals(0, accountant.getUsedBytes());
+		} finally {
+			accountant.shutdown();
+		}
+	}
+}
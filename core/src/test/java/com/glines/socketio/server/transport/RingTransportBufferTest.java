@@ -0,0 +1,189 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RingTransportBufferTest {
+	@Test
+	public void boundedBySizeAndSlots() {
+		RingTransportBuffer buffer = new RingTransportBuffer(10, 4);
+		assertEquals(4, buffer.getCapacity());
+		assertTrue(buffer.putMessage("12345", 0));
+		assertFalse(buffer.putMessage("123456", 0));
+		assertTrue(buffer.putMessage("a", 0));
+		assertTrue(buffer.putMessage("b", 0));
+		assertTrue(buffer.putMessage("c", 0));
+		// Out of slots, though there is room for the bytes.
+		assertFalse(buffer.putMessage("d", 0));
+		assertEquals(8, buffer.getAvailableBytes());
+		assertEquals(4, buffer.getMessageCount());
+		assertEquals(Arrays.asList("12345", "a", "b", "c"), buffer.drainMessages());
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.getAvailableBytes());
+	}
+
+	@Test
+	public void wrapsAroundInOrder() {
+		RingTransportBuffer buffer = new RingTransportBuffer(1000, 4);
+		int next = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 3; i++) {
+				assertTrue(buffer.putMessage("m" + (next + i), 0));
+			}
+			for (int i = 0; i < 3; i++) {
+				assertEquals("m" + next++, buffer.poll());
+			}
+			assertNull(buffer.poll());
+		}
+	}
+
+	@Test
+	public void wrapsAroundWithSeveralProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 20000;
+		// Far fewer slots than messages, so every slot is reused many times.
+		final RingTransportBuffer buffer = new RingTransportBuffer(64, 8);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final String prefix = p + ":";
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int n = 0; n < perProducer; n++) {
+						String message = prefix + n;
+						while (!buffer.putMessage(message, 0)) {
+							Thread.yield();
+						}
+					}
+				}
+			});
+			threads[p].start();
+		}
+		final int[] expected = new int[producers];
+		final int[] received = new int[1];
+		TransportBuffer.MessageSink sink = new TransportBuffer.MessageSink() {
+			@Override
+			public void onMessage(String message) {
+				int sep = message.indexOf(':');
+				int p = Integer.parseInt(message.substring(0, sep));
+				// Each producer's messages arrive in the order it put them, none lost or repeated.
+				assertEquals(expected[p]++, Integer.parseInt(message.substring(sep + 1)));
+				received[0]++;
+			}
+		};
+		long deadline = System.currentTimeMillis() + 30000;
+		while (received[0] < producers * perProducer && System.currentTimeMillis() < deadline) {
+			if (buffer.drainMessages(sink) == 0) {
+				Thread.yield();
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(producers * perProducer, received[0]);
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.getAvailableBytes());
+	}
+
+	@Test
+	public void conflatesInPlace() {
+		RingTransportBuffer buffer = new RingTransportBuffer(1000, 8);
+		buffer.putMessage("a1", "a", 0);
+		buffer.putMessage("b1", "b", 0);
+		buffer.putMessage("a22", "a", 0);
+		assertEquals(2, buffer.getMessageCount());
+		assertEquals(5, buffer.getAvailableBytes());
+		assertEquals(Arrays.asList("a22", "b1"), buffer.drainMessages());
+		// Once drained the key starts a new message.
+		buffer.putMessage("a3", "a", 0);
+		assertEquals(Arrays.asList("a3"), buffer.drainMessages());
+	}
+
+	@Test
+	public void evictKeepsOrderAndKeys() {
+		RingTransportBuffer buffer = new RingTransportBuffer(1000, 8);
+		// Start part way round so the kept messages wrap.
+		for (int i = 0; i < 6; i++) {
+			buffer.putMessage("x", 0);
+			buffer.poll();
+		}
+		for (int i = 0; i < 6; i++) {
+			buffer.putMessage("m" + i, i % 2 == 0 ? "k" + i : null, 0);
+		}
+		int evicted = buffer.evictMessages(new TransportBuffer.MessageFilter() {
+			@Override
+			public boolean evict(String message, String conflationKey) {
+				return conflationKey != null && !message.equals("m4");
+			}
+		});
+		assertEquals(2, evicted);
+		assertEquals(4, buffer.getMessageCount());
+		assertEquals(8, buffer.getAvailableBytes());
+		// The kept keyed message is still conflated, the evicted key starts a new message.
+		buffer.putMessage("m4x", "k4", 0);
+		buffer.putMessage("m0x", "k0", 0);
+		// Freed slots are usable straight away.
+		for (int i = 0; i < 3; i++) {
+			assertTrue(buffer.putMessage("n" + i, 0));
+		}
+		assertFalse(buffer.putMessage("full", 0));
+		assertEquals(Arrays.asList("m1", "m3", "m4x", "m5", "m0x", "n0", "n1", "n2"), buffer.drainMessages());
+	}
+
+	@Test
+	public void listenerOnlyTakesMessagesWhenEmpty() {
+		RingTransportBuffer buffer = new RingTransportBuffer(1000, 8);
+		final List<String> delivered = new ArrayList<String>();
+		buffer.putMessage("queued", 0);
+		buffer.setListener(new TransportBuffer.BufferListener() {
+			@Override
+			public boolean onMessage(String message) {
+				delivered.add(message);
+				return true;
+			}
+
+			@Override
+			public boolean onMessages(List<String> messages) {
+				delivered.addAll(messages);
+				return true;
+			}
+		});
+		// Producers don't drain the ring, the new message waits behind the queued one.
+		assertTrue(buffer.putMessage("behind", 0));
+		assertTrue(delivered.isEmpty());
+		assertEquals(Arrays.asList("queued", "behind"), buffer.drainMessages());
+		assertTrue(buffer.putMessage("direct", 0));
+		assertEquals(Arrays.asList("direct"), delivered);
+		assertTrue(buffer.isEmpty());
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.glines.socketio.server.SocketIOFrame;
+
+/**
+ * Compares the ring and queue transport buffers the way a busy session uses them: several
+ * threads put messages while a single consumer drains them in batches, as requests do.
+ * <p>
+ * Pass the number of messages to send as an argument, the default is 2 million.
+ */
+public final class TransportBufferBenchmark {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String MESSAGE = new SocketIOFrame(SocketIOFrame.FrameType.DATA,
+			SocketIOFrame.TEXT_MESSAGE_TYPE, "{\"price\":101.25,\"qty\":100}").encode();
+
+	public static void main(String... args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		// Warm up both buffers before measuring.
+		run("ring", new RingTransportBuffer(BUFFER_SIZE), 2, messages / 10, false);
+		run("queue", new QueueTransportBuffer(BUFFER_SIZE), 2, messages / 10, false);
+		for (int producers : new int[] {1, 2, 4, 8, 16}) {
+			run("ring", new RingTransportBuffer(BUFFER_SIZE), producers, messages, true);
+			run("queue", new QueueTransportBuffer(BUFFER_SIZE), producers, messages, true);
+		}
+	}
+
+	private static void run(String name, final TransportBuffer buffer, int producers, int messages,
+			boolean print) throws InterruptedException {
+		final int perProducer = messages / producers;
+		final int total = perProducer * producers;
+		final AtomicInteger fullRetries = new AtomicInteger();
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int n = 0; n < perProducer; n++) {
+						while (!buffer.putMessage(MESSAGE, 0)) {
+							fullRetries.incrementAndGet();
+							Thread.yield();
+						}
+					}
+				}
+			});
+		}
+		final int[] received = new int[1];
+		TransportBuffer.MessageSink sink = new TransportBuffer.MessageSink() {
+			@Override
+			public void onMessage(String message) {
+				received[0]++;
+			}
+		};
+		int batches = 0;
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		while (received[0] < total) {
+			if (buffer.drainMessages(sink) > 0) {
+				batches++;
+			} else {
+				Thread.yield();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (print) {
+			long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsed));
+			System.out.println(String.format("%-5s %d producers: %,11d msg/s, %,9d batches of %,6.1f, %,10d retries on a full buffer",
+					name, producers, total * 1000L / millis, batches, (double)total / Math.max(1, batches),
+					fullRetries.get()));
+		}
+	}
+}
@@ -22,10 +22,6 @@
  */
 package com.glines.socketio.sample.broadcast;
 
-import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 import javax.servlet.http.HttpServletRequest;
 
 import com.glines.socketio.server.SocketIOOutbound;
@@ -33,11 +29,12 @@ import org.eclipse.jetty.util.log.Log;
 
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.server.SocketIOInbound;
+import com.glines.socketio.server.SocketIOMessage;
 import com.glines.socketio.server.SocketIOServlet;
 
 public class BroadcastSocketServlet extends SocketIOServlet {
 	private static final long serialVersionUID = 1L;
-	private Queue<BroadcastConnection> connections = new ConcurrentLinkedQueue<BroadcastConnection>();
+	private static final String ROOM = "broadcast";
 
 	private class BroadcastConnection implements SocketIOInbound {
 		private volatile SocketIOOutbound outbound = null;
@@ -45,14 +42,13 @@ public class BroadcastSocketServlet extends SocketIOServlet {
 		@Override
 		public void onConnect(SocketIOOutbound outbound) {
 			this.outbound = outbound;
-            connections.offer(this);
+			getRoomManager().join(ROOM, outbound);
 		}
 
 		@Override
 		public void onDisconnect(DisconnectReason reason, String errorMessage) {
-				this.outbound = null;
-				connections.remove(this);
-			}
+			// The session leaves the room when it shuts down.
+		}
 
 		@Override
 		public void onMessage(int messageType, String message) {
@@ -61,17 +57,9 @@ public class BroadcastSocketServlet extends SocketIOServlet {
 
 		private void broadcast(int messageType, String message) {
 			Log.debug("Broadcasting: " + message);
-				for(BroadcastConnection c: connections) {
-					if (c != this) {
-						try {
-							c.outbound.sendMessage(messageType, message);
-						} catch (IOException e) {
-							c.outbound.disconnect();
-						}
-					}
-				}
-			}
+			getRoomManager().broadcast(ROOM, new SocketIOMessage(messageType, message), outbound);
 		}
+	}
 
 	@Override
 	protected SocketIOInbound doSocketIOConnect(HttpServletRequest request) {
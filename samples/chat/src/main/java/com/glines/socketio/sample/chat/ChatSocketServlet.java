@@ -22,10 +22,7 @@
  */
 package com.glines.socketio.sample.chat;
 
-import java.io.IOException;
 import java.util.Collections;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -38,12 +35,13 @@ import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
 import com.glines.socketio.server.SocketIOFrame;
 import com.glines.socketio.server.SocketIOInbound;
+import com.glines.socketio.server.SocketIOMessage;
 import com.glines.socketio.server.SocketIOServlet;
 
 public class ChatSocketServlet extends SocketIOServlet {
 	private static final long serialVersionUID = 1L;
 	private AtomicInteger ids = new AtomicInteger(1);
-	private Queue<ChatConnection> connections = new ConcurrentLinkedQueue<ChatConnection>();
+	private static final String ROOM = "chat";
 
 	private class ChatConnection implements SocketIOInbound {
 		private volatile SocketIOOutbound outbound = null;
@@ -52,7 +50,7 @@ public class ChatSocketServlet extends SocketIOServlet {
 		@Override
 		public void onConnect(SocketIOOutbound outbound) {
 			this.outbound = outbound;
-            connections.offer(this);
+			getRoomManager().join(ROOM, outbound);
 			try {
 				outbound.sendMessage(SocketIOFrame.JSON_MESSAGE_TYPE, JSON.toString(
 						Collections.singletonMap("welcome", "Welcome to Socket.IO Chat!")));
@@ -65,8 +63,7 @@ public class ChatSocketServlet extends SocketIOServlet {
 
 		@Override
 		public void onDisconnect(DisconnectReason reason, String errorMessage) {
-				this.outbound = null;
-				connections.remove(this);
+			// The session leaves the room when it shuts down.
 			broadcast(SocketIOFrame.JSON_MESSAGE_TYPE, JSON.toString(
 					Collections.singletonMap("announcement", sessionId + " disconnected")));
 		}
@@ -138,17 +135,9 @@ public class ChatSocketServlet extends SocketIOServlet {
 
 		private void broadcast(int messageType, String message) {
 			Log.debug("Broadcasting: " + message);
-				for(ChatConnection c: connections) {
-					if (c != this) {
-						try {
-							c.outbound.sendMessage(messageType, message);
-						} catch (IOException e) {
-							c.outbound.disconnect();
-						}
-					}
-				}
-			}
+			getRoomManager().broadcast(ROOM, new SocketIOMessage(messageType, message), outbound);
 		}
+	}
 
 	@Override
 	protected SocketIOInbound doSocketIOConnect(HttpServletRequest request) {
@@ -25,6 +25,7 @@ package com.glines.socketio.sample.eventbus;
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
 import com.glines.socketio.server.SocketIOInbound;
+import com.glines.socketio.server.SocketIOMessage;
 import com.glines.socketio.server.SocketIOOutbound;
 import com.glines.socketio.server.SocketIOServlet;
 import org.codehaus.jettison.json.JSONArray;
@@ -35,8 +36,6 @@ import org.eclipse.jetty.util.log.Log;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -55,8 +54,6 @@ public class EventBusServlet extends SocketIOServlet {
 
     private static final Logger LOGGER = Logger.getLogger(EventBusServlet.class.getName());
 
-    private final ConcurrentMap<String, Endpoints> subscriptions = new ConcurrentHashMap<String, Endpoints>();
-
     @Override
     protected SocketIOInbound doSocketIOConnect(HttpServletRequest request) {
         return new Endpoint(request.getSession().getId(), request.getRemoteHost(), request.getRemotePort());
@@ -76,10 +73,6 @@ public class EventBusServlet extends SocketIOServlet {
             this.id = id;
         }
 
-        String getId() {
-            return id;
-        }
-
         @Override
         public String toString() {
             return "Endpoint " + id + " (" + remoteHost + ":" + remotePort + ")";
@@ -115,8 +108,7 @@ public class EventBusServlet extends SocketIOServlet {
             if (LOGGER.isLoggable(Level.FINE))
                 LOGGER.log(Level.FINE, this + " disconnected: reason=" + reason);
             this.outbound = null;
-            for (Endpoints ee : subscriptions.values())
-                ee.remove(this);
+            // The session's subscriptions are dropped when it shuts down.
         }
 
         @Override
@@ -135,17 +127,14 @@ public class EventBusServlet extends SocketIOServlet {
                             String topic = json.getString("topic");
                             if (LOGGER.isLoggable(Level.FINE))
                                 LOGGER.log(Level.FINE, this + " subscribes to topic: " + topic);
-                            subscriptions.putIfAbsent(topic, new Endpoints(topic));
-                            subscriptions.get(topic).add(this);
+                            getTopicManager().subscribe(topic, outbound);
                             break;
                         }
                         case UNSUBSCRIBE: {
                             String topic = json.getString("topic");
                             if (LOGGER.isLoggable(Level.FINE))
                                 LOGGER.log(Level.FINE, this + " unsubscribes from topic: " + topic);
-                            Endpoints ee = subscriptions.get(topic);
-                            if (ee != null)
-                                ee.remove(this);
+                            getTopicManager().unsubscribe(topic, outbound);
                             return;
                         }
                         case PUBLISH: {
@@ -153,9 +142,8 @@ public class EventBusServlet extends SocketIOServlet {
                             String data = json.getString("data");
                             if (LOGGER.isLoggable(Level.FINE))
                                 LOGGER.log(Level.FINE, this + " publishes to topic " + topic + " message: " + data);
-                            Endpoints ee = subscriptions.get(topic);
-                            if (ee != null)
-                                ee.fire(topic, data);
+                            getTopicManager().publish(topic, new SocketIOMessage(new JSONObject()
+                                    .put("type", MessageType.PUBLISH).put("topic", topic).put("data", data).toString()));
                             break;
                         }
                         default: {
@@ -179,12 +167,15 @@ public class EventBusServlet extends SocketIOServlet {
         }
 
         void send(JSONObject data) {
+            send(new SocketIOMessage(data.toString()));
+        }
+
+        void send(SocketIOMessage message) {
             if (outbound != null) {
-                String str = data.toString();
                 if (LOGGER.isLoggable(Level.FINE))
-                    LOGGER.fine("Sending to " + this + " message: " + str);
+                    LOGGER.fine("Sending to " + this + " message: " + message.getData());
                 try {
-                    outbound.sendMessage(str);
+                    outbound.sendMessage(message);
                 } catch (SocketIOException e) {
                     LOGGER.log(Level.SEVERE, "Error sending message to " + this + " => disconnecting. Error: " + e.getMessage(), e);
                     close();
@@ -193,55 +184,6 @@ public class EventBusServlet extends SocketIOServlet {
         }
     }
 
-    private final class Endpoints {
-
-        final String topic;
-        final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
-
-        Endpoints(String topic) {
-            this.topic = topic;
-        }
-
-        @Override
-        public String toString() {
-            return "Endpoints for " + topic + ": " + endpoints.size();
-        }
-
-        void add(Endpoint endpoint) {
-            if (LOGGER.isLoggable(Level.FINE))
-                LOGGER.log(Level.FINE, "Subscribing " + endpoint + " to " + this);
-            Endpoint old = endpoints.get(endpoint.getId());
-            if (old == null) {
-                endpoints.putIfAbsent(endpoint.getId(), endpoint);
-            } else {
-                endpoints.replace(endpoint.getId(), old, endpoint);
-            }
-            if (old != null)
-                old.close();
-        }
-
-        void remove(Endpoint endpoint) {
-            if (endpoints.remove(endpoint.getId(), endpoint)) {
-                if (LOGGER.isLoggable(Level.FINE))
-                    LOGGER.log(Level.FINE, endpoint + " unsubscribed from " + this);
-                if (endpoints.isEmpty()) {
-                    subscriptions.remove(topic, this);
-                    if (LOGGER.isLoggable(Level.FINE))
-                        LOGGER.log(Level.FINE, this + " removed from subscriptions.");
-                }
-            }
-        }
-
-        void fire(String topic, String data) {
-            for (Endpoint endpoint : endpoints.values())
-                try {
-                    endpoint.send(new JSONObject().put("type", MessageType.PUBLISH).put("topic", topic).put("data", data));
-                } catch (JSONException e) {
-                    throw new RuntimeException(e.getMessage(), e);
-                }
-        }
-    }
-
     private static enum MessageType {
 
         ACK(4),